@@ -0,0 +1,221 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * A compact copy of the whole sketch as of one sequence number, so a restart only replays the journal after it.
+ * The sequencer streams it here like a snapshot for a new client (see SnapshotStream), and a background thread writes it:
+ * a header (magic, seq, numID), the shapes' ADD frames back to front, and a trailer (their total length and a CRC32).
+ * It goes to a temporary file first and is renamed once it's safely on disk; then older checkpoints,
+ * and journal segments it covers, are deleted.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class Checkpoint implements ServerConnection {
+	private static final int MAGIC = 0x534b4350;		// "SKCP"
+	private static final int HEADER = 16, TRAILER = 12;	// magic, seq, numID; length and CRC
+	private static final Message END = Message.text("");	// marks the end of the shapes in the queue
+	private static final int DECODE_RUN = 4096;			// frames decoded together when loading
+
+	private File dir;						// where checkpoints (and the journal) live
+	private long seq;						// sequence number the sketch is at
+	private int numID;						// the sketch's last id given out
+	private Journal journal;				// to truncate once this is written
+	private OutboundQueue outbound = new OutboundQueue(Integer.MAX_VALUE, OutboundQueue.Policy.DISCONNECT);
+	private volatile boolean done = false;	// whether writing has finished (or failed)
+
+	/**
+	 * Starts writing a checkpoint of the sketch at seq, whose shapes are then sent (as a snapshot is) and finally finished
+	 */
+	public Checkpoint(File dir, long seq, int numID, Journal journal) {
+		this.dir = dir;
+		this.seq = seq;
+		this.numID = numID;
+		this.journal = journal;
+		Thread writer = new Thread(this::write, "sketch-checkpoint");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public void send(Message msg) {
+		outbound.offer(msg);
+	}
+
+	public OutboundQueue getOutbound() {
+		return outbound;
+	}
+
+	/**
+	 * Marks the end of the shapes; the writer finishes the file once it gets here
+	 */
+	public void finish() {
+		outbound.offer(END);
+	}
+
+	/**
+	 * @return whether the checkpoint is written (or failed), so another may start
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	private void write() {
+		long start = System.nanoTime();
+		try {
+			writeFile(dir, seq, numID, () -> {
+				Message msg = outbound.take();
+				return msg == END || msg == null ? null : msg.getBytes(true);
+			});
+			journal.truncate(seq);
+			System.out.printf("checkpoint of %s at operation %d written in %d ms%n",
+					dir, seq, (System.nanoTime() - start) / 1_000_000);
+		}
+		catch (IOException | InterruptedException e) {
+			System.err.println("couldn't write checkpoint");
+			e.printStackTrace();
+		}
+		finally {
+			done = true;
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of a sketch that nothing else is touching (a room being put away), on this thread
+	 */
+	public static void save(File dir, long seq, Sketch sketch) throws IOException {
+		int[] ids = sketch.getIDs();
+		int[] next = { 0 };
+		try {
+			writeFile(dir, seq, sketch.getNumID(), () -> {
+				if (next[0] == ids.length) return null;
+				int id = ids[next[0]++];
+				return new Message(Command.add(id, sketch.shapeFromID(id))).getBytes(true);
+			});
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Writes the frames to a temporary file, forces it to disk and renames it into place, then deletes older checkpoints
+	 */
+	private static void writeFile(File dir, long seq, int numID, Frames frames) throws IOException, InterruptedException {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("can't create checkpoint directory " + dir);
+		File tmp = new File(dir, String.format("checkpoint-%020d.tmp", seq));
+		try {
+			FileOutputStream file = new FileOutputStream(tmp);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeLong(seq);
+				out.writeInt(numID);
+
+				CRC32 crc = new CRC32();
+				long length = 0;
+				byte[] bytes;
+				while ((bytes = frames.next()) != null) {
+					out.write(bytes);
+					crc.update(bytes);
+					length += bytes.length;
+				}
+				out.writeLong(length);
+				out.writeInt((int) crc.getValue());
+				out.flush();
+				file.getFD().sync();
+			}
+
+			File ckpt = new File(dir, String.format("checkpoint-%020d.ckpt", seq));
+			if (!tmp.renameTo(ckpt)) throw new IOException("can't rename " + tmp + " to " + ckpt);
+			for (File f : list(dir)) {
+				if (seqOf(f) < seq) f.delete();
+			}
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Loads the newest complete checkpoint in dir into an empty sketch
+	 * @return the sequence number it was at (0 if there is no checkpoint)
+	 */
+	public static long load(File dir, Sketch sketch) throws IOException {
+		File[] files = list(dir);
+		Arrays.sort(files);
+		for (int i = files.length - 1; i >= 0; i--) {
+			try (FileChannel channel = FileChannel.open(files[i].toPath(), StandardOpenOption.READ)) {
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (map.capacity() < HEADER + TRAILER || map.getInt(0) != MAGIC) continue;
+				long seq = map.getLong(4);
+				int numID = map.getInt(12);
+				long length = map.getLong(map.capacity() - TRAILER);
+				if (length != map.capacity() - HEADER - TRAILER) continue;
+
+				ByteBuffer frames = map.slice(HEADER, (int) length);
+				CRC32 crc = new CRC32();
+				crc.update(frames.duplicate());
+				if ((int) crc.getValue() != map.getInt(map.capacity() - 4)) {
+					System.err.println("checkpoint " + files[i].getName() + " is damaged; trying an older one");
+					continue;
+				}
+				for (Command c : decode(frames)) sketch.restoreShape(c.getID(), c.getShape());
+				sketch.restoreNumID(numID);
+				return seq;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Decodes the ADD frames, in parallel: finds where each frame starts, then decodes runs of them on the common pool
+	 * @return the commands, in order
+	 */
+	private static Command[] decode(ByteBuffer frames) {
+		int[] starts = new int[1024];
+		int n = 0;
+		while (frames.hasRemaining()) {
+			if (n == starts.length) starts = Arrays.copyOf(starts, n * 2);
+			starts[n++] = frames.position();
+			frames.position(frames.position() + WireProtocol.frameSize(frames));
+		}
+
+		Command[] commands = new Command[n];
+		int[] at = starts;
+		int runs = (n + DECODE_RUN - 1) / DECODE_RUN;
+		IntStream.range(0, runs).parallel().forEach(r -> {
+			ByteBuffer buf = frames.duplicate();
+			for (int i = r * DECODE_RUN; i < Math.min(commands.length, (r + 1) * DECODE_RUN); i++) {
+				buf.position(at[i]);
+				commands[i] = WireProtocol.decodeFrame(buf);
+			}
+		});
+		return commands;
+	}
+
+	/**
+	 * The shapes' ADD frames, one (or a batch) at a time; null at the end
+	 */
+	private interface Frames {
+		byte[] next() throws InterruptedException;
+	}
+
+	private static File[] list(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.startsWith("checkpoint-") && name.endsWith(".ckpt"));
+		return files == null ? new File[0] : files;
+	}
+
+	private static long seqOf(File f) {
+		String name = f.getName();
+		return Long.parseLong(name.substring("checkpoint-".length(), name.length() - ".ckpt".length()));
+	}
+}
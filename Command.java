@@ -0,0 +1,182 @@
+import java.awt.Color;
+
+/**
+ * One editing operation, decoded from either the text or the binary protocol:
+ * ADD (with a shape, and the id the server gave it), MOVE (by dx, dy), RECOLOR (to color) or DELETE;
+ * a freehand stroke streamed as it's drawn: BEGIN (a polyline, which the server adds as an ADD), APPEND (more points,
+ * to the client's open stroke, or from the server, to the stroke with the id) and END (the stroke is finished, which
+ * the server sends on as an ADD of the whole stroke, for clients that don't know APPEND);
+ * the part of the sketch a client is looking at: VIEW (a box, from the client, which from then on only gets operations
+ * on shapes reaching into it) and EVICT (from the server: a shape has left the client's view, so it can let it go);
+ * or one of the server's markers for clients that can resume: SYNC (operations up to seq have been sent)
+ * and RESET (throw away the sketch; a full snapshot follows)
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class Command {
+	public enum Op {
+		ADD, MOVE, RECOLOR, DELETE, SYNC, RESET, BEGIN, APPEND, END, VIEW, EVICT
+	}
+
+	Op op;				// which operation
+	int id;				// shape the operation applies to (0 for an ADD not yet given an id by the server)
+	int dx, dy;			// MOVE distance
+	int color;			// RECOLOR color, as RGB int
+	Shape shape;		// ADD or BEGIN shape
+	int[] points;		// APPEND points, x and y interleaved
+	int[] box;			// VIEW box: {left, top, right, bottom}
+	long seq;			// SYNC sequence number
+	ServerConnection from;	// (on the server) the client a BEGIN, APPEND or END came from, whose stroke it is
+
+	public static Command add(int id, Shape shape) {
+		Command c = new Command();
+		c.op = Op.ADD; c.id = id; c.shape = shape;
+		return c;
+	}
+
+	public static Command move(int id, int dx, int dy) {
+		Command c = new Command();
+		c.op = Op.MOVE; c.id = id; c.dx = dx; c.dy = dy;
+		return c;
+	}
+
+	public static Command recolor(int id, int color) {
+		Command c = new Command();
+		c.op = Op.RECOLOR; c.id = id; c.color = color;
+		return c;
+	}
+
+	public static Command delete(int id) {
+		Command c = new Command();
+		c.op = Op.DELETE; c.id = id;
+		return c;
+	}
+
+	public static Command sync(long seq) {
+		Command c = new Command();
+		c.op = Op.SYNC; c.seq = seq;
+		return c;
+	}
+
+	public static Command begin(Polyline stroke) {
+		Command c = new Command();
+		c.op = Op.BEGIN; c.shape = stroke;
+		return c;
+	}
+
+	public static Command append(int id, int[] points) {
+		Command c = new Command();
+		c.op = Op.APPEND; c.id = id; c.points = points;
+		return c;
+	}
+
+	public static Command end() {
+		Command c = new Command();
+		c.op = Op.END;
+		return c;
+	}
+
+	public static Command view(int[] box) {
+		Command c = new Command();
+		c.op = Op.VIEW; c.box = box;
+		return c;
+	}
+
+	public static Command evict(int id) {
+		Command c = new Command();
+		c.op = Op.EVICT; c.id = id;
+		return c;
+	}
+
+	public static Command reset() {
+		Command c = new Command();
+		c.op = Op.RESET;
+		return c;
+	}
+
+	/**
+	 * @return a command with the same fields (the shape, points and box themselves are shared)
+	 */
+	public Command copy() {
+		Command c = new Command();
+		c.op = op; c.id = id; c.dx = dx; c.dy = dy; c.color = color; c.shape = shape; c.points = points; c.seq = seq;
+		c.box = box; c.from = from;
+		return c;
+	}
+
+	public Op getOp() { return op; }
+
+	public int getID() { return id; }
+
+	public int getDx() { return dx; }
+
+	public int getDy() { return dy; }
+
+	public Color getColor() { return new Color(color); }
+
+	public Shape getShape() { return shape; }
+
+	public int[] getPoints() { return points; }
+
+	public int[] getBox() { return box; }
+
+	public ServerConnection getFrom() { return from; }
+
+	public long getSeq() { return seq; }
+
+	/**
+	 * @return whether this changes the sketch (as opposed to being a SYNC or RESET marker, the END of a stroke,
+	 * or about what a client is looking at)
+	 */
+	public boolean isEdit() { return op != Op.SYNC && op != Op.RESET && op != Op.END && op != Op.VIEW && op != Op.EVICT; }
+
+	/**
+	 * Parses a text protocol line, either from a client ("ADD shapeType |info|")
+	 * or from the server ("ADD id shapeType |info|"), or MOVE/RECOLOR/DELETE in either direction
+	 * @param line line to parse
+	 * @return the command, or null if the line isn't an editing operation (e.g. part of the handshake)
+	 */
+	public static Command parse(String line) {
+		Command c = new Command();
+		return CommandParser.get().parse(line, c) ? c : null;
+	}
+
+	/**
+	 * @return the command as a text protocol line
+	 */
+	@Override
+	public String toString() {
+		return switch (op) {
+			case ADD -> {
+				// a long stroke is written straight into the line, not copied through its own string
+				StringBuilder line = new StringBuilder(64).append("ADD ");
+				if (id > 0) line.append(id).append(' ');
+				shape.appendTo(line);
+				yield line.toString();
+			}
+			case MOVE -> "MOVE " + id + " " + dx + " " + dy;
+			case RECOLOR -> "RECOLOR " + id + " " + color;
+			case DELETE -> "DELETE " + id;
+			case SYNC -> "SYNC " + seq;
+			case RESET -> "RESET";
+			case BEGIN -> {
+				StringBuilder line = new StringBuilder(64).append("BEGIN ");
+				shape.appendTo(line);
+				yield line.toString();
+			}
+			case APPEND -> {
+				StringBuilder line = new StringBuilder(16 + 8 * points.length).append("APPEND ");
+				if (id > 0) line.append(id).append(' ');
+				line.append('|');
+				for (int i = 0; i < points.length; i++) {
+					if (i > 0) line.append(' ');
+					line.append(points[i]);
+				}
+				yield line.append('|').toString();
+			}
+			case END -> "END";
+			case VIEW -> "VIEW " + box[0] + " " + box[1] + " " + box[2] + " " + box[3];
+			case EVICT -> "EVICT " + id;
+		};
+	}
+}
@@ -0,0 +1,270 @@
+import java.awt.Color;
+import java.awt.Point;
+import java.util.Arrays;
+
+/**
+ * Streaming tokenizer for the text protocol, shared by the server and the editor.
+ * Reads a command straight from the characters (or bytes) of a line into the primitive fields of a Command,
+ * without splitting it into intermediate strings; the only things allocated are the shape an ADD (or BEGIN) describes
+ * and the points an APPEND (or box a VIEW) carries.
+ * Not thread-safe: each reader keeps its own parser.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class CommandParser {
+	private static final ThreadLocal<CommandParser> local = ThreadLocal.withInitial(CommandParser::new);
+
+	private CharSequence text;			// line being parsed, if it is characters
+	private byte[] bytes;				// line being parsed, if it is bytes
+	private int pos, end;				// current position in the line, and where it ends
+	private boolean error;				// whether a number was malformed
+	private int[] nums = new int[64];	// numbers between the |'s of a shape
+	private int numCount;
+
+	/**
+	 * @return a parser for the current thread, for callers that don't keep their own
+	 */
+	public static CommandParser get() {
+		return local.get();
+	}
+
+	/**
+	 * Parses a text protocol line, either from a client ("ADD shapeType |info|")
+	 * or from the server ("ADD id shapeType |info|"), or MOVE/RECOLOR/DELETE in either direction
+	 * @param line line to parse
+	 * @param into command to fill in
+	 * @return whether the line was an editing operation (not, e.g., part of the handshake or garbage)
+	 */
+	public boolean parse(CharSequence line, Command into) {
+		text = line; bytes = null;
+		pos = 0; end = line.length();
+		return parse(into);
+	}
+
+	/**
+	 * Parses a text protocol line held as (ASCII) bytes, e.g. straight out of a read buffer
+	 */
+	public boolean parse(byte[] buf, int off, int len, Command into) {
+		text = null; bytes = buf;
+		pos = off; end = off + len;
+		return parse(into);
+	}
+
+	/**
+	 * Parses just the shape part of an ADD ("[ADD [id]] shapeType |info|")
+	 * @return the shape, or null if it couldn't be parsed
+	 */
+	public Shape parseShape(CharSequence s) {
+		text = s; bytes = null;
+		pos = 0; end = s.length();
+		error = false;
+		skipSpaces();
+		if (word("ADD")) {
+			skipSpaces();
+			if (pos < end && isDigit(at(pos))) {
+				readInt();
+				skipSpaces();
+			}
+		}
+		Shape shape = readShape();
+		return error ? null : shape;
+	}
+
+	private boolean parse(Command c) {
+		error = false;
+		c.id = 0; c.dx = 0; c.dy = 0; c.color = 0; c.shape = null; c.points = null; c.box = null; c.seq = 0;
+		skipSpaces();
+		if (word("ADD")) {
+			c.op = Command.Op.ADD;
+			skipSpaces();
+			// the server's form has the id before the shape type
+			if (pos < end && isDigit(at(pos))) c.id = readInt();
+			c.shape = readShape();
+			return !error && c.shape != null;
+		}
+		if (word("BEGIN")) {
+			c.op = Command.Op.BEGIN;
+			c.shape = readShape();
+			return !error && c.shape instanceof Polyline;
+		}
+		if (word("APPEND")) {
+			c.op = Command.Op.APPEND;
+			skipSpaces();
+			// likewise the server's form, with the stroke's id
+			if (pos < end && isDigit(at(pos))) c.id = readInt();
+			if (!readNumbers() || numCount == 0 || numCount % 2 != 0) return false;
+			c.points = Arrays.copyOf(nums, numCount);
+			return true;
+		}
+		if (word("MOVE")) {
+			c.op = Command.Op.MOVE;
+			c.id = readInt();
+			c.dx = readInt();
+			c.dy = readInt();
+		}
+		else if (word("RECOLOR")) {
+			c.op = Command.Op.RECOLOR;
+			c.id = readInt();
+			c.color = readInt();
+		}
+		else if (word("DELETE")) {
+			c.op = Command.Op.DELETE;
+			c.id = readInt();
+		}
+		else if (word("SYNC")) {
+			c.op = Command.Op.SYNC;
+			c.seq = readLong();
+		}
+		else if (word("RESET")) {
+			c.op = Command.Op.RESET;
+		}
+		else if (word("END")) {
+			c.op = Command.Op.END;
+		}
+		else if (word("VIEW")) {
+			c.op = Command.Op.VIEW;
+			c.box = new int[] { readInt(), readInt(), readInt(), readInt() };
+		}
+		else if (word("EVICT")) {
+			c.op = Command.Op.EVICT;
+			c.id = readInt();
+		}
+		else {
+			return false;
+		}
+		return !error;
+	}
+
+	/**
+	 * Reads "shapeType |n n n ... color|" and builds the shape
+	 */
+	private Shape readShape() {
+		skipSpaces();
+		int kind;
+		if (word("ellipse")) kind = 0;
+		else if (word("rectangle")) kind = 1;
+		else if (word("segment")) kind = 2;
+		else if (word("polyline")) kind = 3;
+		else {
+			error = true;
+			return null;
+		}
+
+		if (!readNumbers()) return null;
+
+		// info in the form of x1, y1, x2, y2, color as int (or x1, y1, ... xn, yn, color for a polyline)
+		if (kind == 3) {
+			if (numCount < 3 || numCount % 2 == 0) {
+				error = true;
+				return null;
+			}
+			Polyline polyline = new Polyline(new Point(nums[0], nums[1]), new Color(nums[numCount - 1]));
+			for (int i = 2; i < numCount - 1; i += 2) {
+				polyline.addPoint(nums[i], nums[i + 1]);
+			}
+			return polyline;
+		}
+		if (numCount != 5) {
+			error = true;
+			return null;
+		}
+		Color color = new Color(nums[4]);
+		return switch (kind) {
+			case 0 -> new Ellipse(nums[0], nums[1], nums[2], nums[3], color);
+			case 1 -> new Rectangle(nums[0], nums[1], nums[2], nums[3], color);
+			default -> new Segment(nums[0], nums[1], nums[2], nums[3], color);
+		};
+	}
+
+	/**
+	 * Reads "|n n n ...|" into nums (and numCount)
+	 * @return whether it was all there
+	 */
+	private boolean readNumbers() {
+		skipSpaces();
+		if (pos >= end || at(pos) != '|') {
+			error = true;
+			return false;
+		}
+		pos++;
+		numCount = 0;
+		while (true) {
+			skipSpaces();
+			if (pos >= end) {
+				error = true;
+				return false;
+			}
+			if (at(pos) == '|') break;
+			if (numCount == nums.length) nums = Arrays.copyOf(nums, nums.length * 2);
+			nums[numCount++] = readInt();
+			if (error) return false;
+		}
+		pos++;
+		return true;
+	}
+
+	private char at(int i) {
+		return bytes != null ? (char) (bytes[i] & 0xff) : text.charAt(i);
+	}
+
+	private static boolean isDigit(char ch) {
+		return ch >= '0' && ch <= '9';
+	}
+
+	private void skipSpaces() {
+		while (pos < end && at(pos) == ' ') pos++;
+	}
+
+	/**
+	 * Consumes the word at the current position if it is w (followed by a space, '|' or the end of the line)
+	 */
+	private boolean word(String w) {
+		int n = w.length();
+		if (end - pos < n) return false;
+		for (int i = 0; i < n; i++) {
+			if (at(pos + i) != w.charAt(i)) return false;
+		}
+		if (pos + n < end) {
+			char next = at(pos + n);
+			if (next != ' ' && next != '|') return false;
+		}
+		pos += n;
+		return true;
+	}
+
+	/**
+	 * Reads a non-negative decimal long, skipping spaces before it; flags an error if there isn't one
+	 */
+	private long readLong() {
+		skipSpaces();
+		int start = pos;
+		long v = 0;
+		while (pos < end && isDigit(at(pos))) {
+			if (v > (Long.MAX_VALUE - 9) / 10) error = true;
+			else v = v * 10 + (at(pos) - '0');
+			pos++;
+		}
+		if (pos == start) error = true;
+		return v;
+	}
+
+	/**
+	 * Reads an optionally negative decimal int, skipping spaces before it; flags an error if there isn't one
+	 */
+	private int readInt() {
+		skipSpaces();
+		boolean negative = false;
+		if (pos < end && at(pos) == '-') {
+			negative = true;
+			pos++;
+		}
+		int start = pos;
+		long v = 0;
+		while (pos < end && isDigit(at(pos))) {
+			if (v <= 0x80000000L) v = v * 10 + (at(pos) - '0');
+			pos++;
+		}
+		if (pos == start || v > 0x80000000L || (!negative && v > Integer.MAX_VALUE)) error = true;
+		return (int) (negative ? -v : v);
+	}
+}
@@ -0,0 +1,98 @@
+import java.awt.Color;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares CommandParser with the String.split parsing it replaced, in time and allocation per command,
+ * on a mix of the commands a freehand-heavy room sends.
+ * Usage: java CommandParserBenchmark [--iterations=n]
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class CommandParserBenchmark {
+	private static int sink;	// keeps the JIT from throwing the parsing away
+
+	public static void main(String[] args) {
+		int iterations = Options.parse(args).getInt("iterations", 2_000_000);
+
+		StringBuilder stroke = new StringBuilder("ADD 17 polyline |");
+		for (int i = 0; i < 100; i++) stroke.append(300 + i).append(' ').append(400 - i).append(' ');
+		stroke.append(Color.red.getRGB()).append('|');
+		String[] lines = {
+				stroke.toString(),
+				"ADD 18 rectangle |10 20 300 400 -16777216|",
+				"MOVE 17 -3 4", "MOVE 17 -2 5", "MOVE 18 1 1", "MOVE 18 0 -1",
+				"RECOLOR 18 -65536",
+				"DELETE 17"
+		};
+
+		// warm up both, then measure each
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			run("String.split", lines, iterations, report, CommandParserBenchmark::splitParse);
+			CommandParser parser = new CommandParser();
+			Command c = new Command();
+			run("CommandParser", lines, iterations, report, line -> {
+				parser.parse(line, c);
+				return c.id + c.dx + (c.shape == null ? 0 : 1);
+			});
+		}
+	}
+
+	private interface Parse {
+		int parse(String line);
+	}
+
+	private static void run(String name, String[] lines, int iterations, boolean report, Parse parse) {
+		long bytesBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += parse.parse(lines[i % lines.length]);
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = allocatedBytes() - bytesBefore;
+		if (report) {
+			System.out.printf("%-14s %8.1f ns/command %8.1f bytes/command%n",
+					name, (double) elapsed / iterations, (double) bytes / iterations);
+		}
+	}
+
+	/**
+	 * The old path: split on spaces, then split the shape info out on |'s and again on spaces
+	 */
+	private static int splitParse(String command) {
+		String[] parts = command.split(" ");
+		switch (parts[0]) {
+			case "ADD" -> {
+				Shape shape = null;
+				String[] info = command.split("\\|")[1].split(" ");
+				switch (parts[2]) {
+					case "ellipse" -> shape = Ellipse.generateShapeFromParts(info);
+					case "rectangle" -> shape = Rectangle.generateShapeFromParts(info);
+					case "polyline" -> shape = Polyline.generateShapeFromParts(info);
+					case "segment" -> shape = Segment.generateShapeFromParts(info);
+				}
+				return Integer.parseInt(parts[1]) + (shape == null ? 0 : 1);
+			}
+			case "MOVE" -> {
+				return Integer.parseInt(parts[1]) + Integer.parseInt(parts[2]) + Integer.parseInt(parts[3]);
+			}
+			case "RECOLOR" -> {
+				return Integer.parseInt(parts[1]) + new Color(Integer.parseInt(parts[2])).getRGB();
+			}
+			case "DELETE" -> {
+				return Integer.parseInt(parts[1]);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Bytes allocated so far by this thread (0 if the JVM can't say)
+	 */
+	private static long allocatedBytes() {
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean mx) {
+			return mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -24,7 +24,7 @@ public class EchoServer {
 
     ///////////////////////////////////////////////////////////////////////
     
-    private class EchoServerCommunicator extends Thread {
+    private class EchoServerCommunicator implements Runnable {
         private Socket sock;
         private BufferedReader in;  // from client
         private PrintWriter out;    // to client
@@ -33,6 +33,10 @@ public class EchoServer {
             this.sock = sock;
         }
 
+        public void start() {
+            Threads.start("echo-client-" + sock.getPort(), this);
+        }
+
         public void run() {
             try {
                 System.out.println("editor connected for testing...");
@@ -69,12 +73,12 @@ public class EchoServer {
     public void getConnections() throws IOException {
         while (true) {
             EchoServerCommunicator comm = new EchoServerCommunicator(listen.accept());
-            comm.setDaemon(true);
             comm.start();
         }
     }
     
     public static void main(String[] args) throws Exception {
+        Threads.setVirtual(Options.parse(args).getBoolean("virtual"));
         System.out.println("Starting up the EchoServer...");
         new EchoServer(new ServerSocket(4242)).getConnections();        
     }
@@ -1,6 +1,6 @@
 import java.awt.*;
-import java.util.List;
 import java.awt.event.*;
+import java.util.concurrent.ForkJoinPool;
 import javax.swing.*;
 
 /**
@@ -20,10 +20,15 @@ public class Editor extends JFrame {
 	// or ask a friend for their IP address
 
 	private static final int width = 800, height = 800;		// canvas size
+	private static boolean binary = true;					// whether to ask the server for the binary protocol
+	private static int moveFlushMillis = 16;				// how often drags are sent to the server (0: every event)
+	private static String room = null;						// the document to open on the server (null: the default)
+	private static int renderThreads = Runtime.getRuntime().availableProcessors();	// threads drawing the canvas's tiles
+	private static boolean wholeSketch = false;				// whether to get all of the sketch, not just what's in view
 
 	// Current settings on GUI
 	public enum Mode {
-		DRAW, MOVE, RECOLOR, DELETE
+		DRAW, MOVE, RECOLOR, DELETE, PAN
 	}
 	private Mode mode = Mode.DRAW;				// drawing/moving/recoloring/deleting objects
 	private String shapeType = "ellipse";		// type of object to add
@@ -36,7 +41,17 @@ public class Editor extends JFrame {
 	private int movingId = -1;					// current shape id (if any; else -1) being moved
 	private Point drawFrom = null;				// where the drawing started
 	private Point moveFrom = null;				// where object is as it's being dragged
+	private Point panFrom = null;				// the point of the sketch being dragged around, when panning
 
+	// View: the part of the sketch on the canvas (the server only sends what's in it, plus a margin)
+	private double originX = 0, originY = 0;	// the point of the sketch at the canvas's top left
+	private double scale = 1;					// canvas pixels per unit of the sketch (zoom)
+
+
+	private JComponent canvas;					// where the sketch is drawn
+	private SketchLayers layers;				// ... from cached images of it
+	private int[] batchDamage = null;			// where the batch of changes being applied has touched (if any)
+	private boolean batching = false;			// whether repaints are being held for the end of a batch
 
 	// Communication
 	private EditorCommunicator comm;			// communication with the sketch server
@@ -45,13 +60,15 @@ public class Editor extends JFrame {
 		super("Graphical Editor");
 
 		sketch = new Sketch();
+		layers = new SketchLayers(sketch, renderThreads > 1 ? new ForkJoinPool(renderThreads) : null);
 
 		// Connect to server
-		comm = new EditorCommunicator(serverIP, this);
+		comm = new EditorCommunicator(serverIP, this, binary, room, wholeSketch ? null : new int[] { 0, 0, width - 1, height - 1 });
+		comm.setMoveFlushMillis(moveFlushMillis);
 		comm.start();
 
 		// Helpers to create the canvas and GUI (buttons, etc.)
-		JComponent canvas = setupCanvas();
+		canvas = setupCanvas();
 		JComponent gui = setupGUI();
 
 		// Put the buttons and canvas together into the window
@@ -82,7 +99,7 @@ public class Editor extends JFrame {
 
 		canvas.addMouseListener(new MouseAdapter() {
 			public void mousePressed(MouseEvent event) {
-				handlePress(event.getPoint());
+				handlePress(toSketch(event.getPoint()));
 			}
 
 			public void mouseReleased(MouseEvent event) {
@@ -92,7 +109,20 @@ public class Editor extends JFrame {
 
 		canvas.addMouseMotionListener(new MouseAdapter() {
 			public void mouseDragged(MouseEvent event) {
-				handleDrag(event.getPoint());
+				handleDrag(toSketch(event.getPoint()));
+			}
+		});
+
+		// the wheel zooms in and out around the mouse
+		canvas.addMouseWheelListener(event -> {
+			double zoom = Math.max(1.0 / 16, Math.min(16, scale * Math.pow(1.25, -event.getPreciseWheelRotation())));
+			Point p = event.getPoint();
+			setView(originX + p.x / scale - p.x / zoom, originY + p.y / scale - p.y / zoom, zoom);
+		});
+
+		canvas.addComponentListener(new ComponentAdapter() {
+			public void componentResized(ComponentEvent event) {
+				setView(originX, originY, scale);
 			}
 		});
 		
@@ -125,7 +155,7 @@ public class Editor extends JFrame {
 				null); // no CANCEL button handler
 		chooseColorB.addActionListener(e -> colorDialog.setVisible(true));
 
-		// Mode: draw, move, recolor, or delete
+		// Mode: draw, move, recolor, delete, or pan
 		JRadioButton drawB = new JRadioButton("draw");
 		drawB.addActionListener(e -> mode = Mode.DRAW);
 		drawB.setSelected(true);
@@ -135,16 +165,20 @@ public class Editor extends JFrame {
 		recolorB.addActionListener(e -> mode = Mode.RECOLOR);
 		JRadioButton deleteB = new JRadioButton("delete");
 		deleteB.addActionListener(e -> mode = Mode.DELETE);
+		JRadioButton panB = new JRadioButton("pan");
+		panB.addActionListener(e -> mode = Mode.PAN);
 		ButtonGroup modes = new ButtonGroup(); // make them act as radios -- only one selected
 		modes.add(drawB);
 		modes.add(moveB);
 		modes.add(recolorB);
 		modes.add(deleteB);
+		modes.add(panB);
 		JPanel modesP = new JPanel(new GridLayout(1, 0)); // group them on the GUI
 		modesP.add(drawB);
 		modesP.add(moveB);
 		modesP.add(recolorB);
 		modesP.add(deleteB);
+		modesP.add(panB);
 
 		// Put all the stuff into a panel
 		JComponent gui = new JPanel();
@@ -163,21 +197,109 @@ public class Editor extends JFrame {
 		return sketch;
 	}
 
+	/**
+	 * Repaints just the part of the canvas a change touched (see damage)
+	 */
+	private void repaintDamage(int[] before, int[] after) {
+		int[] box = damage(before, after);
+		if (box == null) return;
+		if (batching && batchDamage != null) { // repainted with the rest at the end of the batch
+			batchDamage = new int[] { Math.min(batchDamage[0], box[0]), Math.min(batchDamage[1], box[1]),
+					Math.max(batchDamage[2], box[2]), Math.max(batchDamage[3], box[3]) };
+		}
+		else if (batching) batchDamage = box;
+		else repaintSketchBox(box);
+	}
+
+	/**
+	 * Repaints the part of the canvas showing a box of the sketch
+	 */
+	private void repaintSketchBox(int[] box) {
+		int[] pixels = layers.toCanvas(box);
+		canvas.repaint(pixels[0], pixels[1], pixels[2] - pixels[0] + 1, pixels[3] - pixels[1] + 1);
+	}
+
+	/**
+	 * Pans and zooms: shows the sketch from the given point at the canvas's top left, at scale canvas pixels per unit,
+	 * and tells the server what's in view now
+	 */
+	private void setView(double originX, double originY, double scale) {
+		this.originX = originX;
+		this.originY = originY;
+		this.scale = scale;
+		layers.setView(originX, originY, scale);
+		canvas.repaint();
+		comm.sendView(new int[] { (int) Math.floor(originX), (int) Math.floor(originY),
+				(int) Math.ceil(originX + canvas.getWidth() / scale), (int) Math.ceil(originY + canvas.getHeight() / scale) });
+	}
+
+	/**
+	 * @return the point of the sketch at a point of the canvas
+	 */
+	private Point toSketch(Point p) {
+		return new Point((int) Math.floor(originX + p.x / scale), (int) Math.floor(originY + p.y / scale));
+	}
+
+	/**
+	 * Applies a batch of changes from the server (on the event dispatch thread), with one repaint at the end,
+	 * of everywhere they touched
+	 */
+	public void applyBatch(Runnable changes) {
+		batching = true;
+		try {
+			changes.run();
+		}
+		finally {
+			batching = false;
+			int[] box = batchDamage;
+			batchDamage = null;
+			if (box != null) repaintSketchBox(box);
+		}
+	}
+
+	/**
+	 * Repaints the part of the canvas a change to a shape in the sketch touched, after marking it stale in the layers
+	 */
+	private void repaintShape(int id, int[] before, int[] after) {
+		layers.invalidate(id, damage(before, after));
+		repaintDamage(before, after);
+	}
+
+	/**
+	 * @return the union of the bounds before and after a change (either may be null),
+	 * and a pixel around for the edges of strokes; null if both are
+	 */
+	private static int[] damage(int[] before, int[] after) {
+		if (before == null) before = after;
+		if (after == null) after = before;
+		if (before == null) return null;
+		return new int[] { Math.min(before[0], after[0]) - 1, Math.min(before[1], after[1]) - 1,
+				Math.max(before[2], after[2]) + 1, Math.max(before[3], after[3]) + 1 };
+	}
+
+	/**
+	 * @return a copy of the bounds of the shape with the ID, or null if there is none
+	 */
+	private int[] boundsOf(int id) {
+		Shape shape = sketch.shapeFromID(id);
+		return shape == null ? null : shape.getBounds().clone();
+	}
+
 	/**
 	 * Draws all the shapes in the sketch,
 	 * along with the object currently being drawn in this editor (not yet part of the sketch)
 	 */
 	public void drawSketch(Graphics g) {
-		List<Shape> shapeList = sketch.getShapesInOrder();
-		for (Shape shape : shapeList) {
-			if (shape != null) {
-				shape.draw(g);
-			}
-		}
+		// the shapes come from cached layers, with just the one being dragged drawn afresh between them
+		layers.paint(g, canvas.getWidth(), canvas.getHeight());
 
 		// need to draw shape being currently modified (if there is one)
 		if (curr != null) {
-			curr.draw(g);
+			Graphics2D view = (Graphics2D) g.create();
+			view.scale(scale, scale);
+			view.translate(-originX, -originY);
+			curr.draw(view);
+			view.dispose();
 		}
 	}
 
@@ -199,7 +321,9 @@ public class Editor extends JFrame {
 						curr = new Ellipse(p.x, p.y, color);
 					}
 					case "freehand" -> {
+						// the stroke goes out as it's drawn, so everyone sees it grow
 						curr = new Polyline(p, color);
+						comm.beginStroke((Polyline) curr);
 					}
 					case "rectangle" -> {
 						curr = new Rectangle(p.x, p.y, color);
@@ -208,6 +332,7 @@ public class Editor extends JFrame {
 						curr = new Segment(p.x, p.y, color);
 					}
 				}
+				repaintDamage(curr.getBounds(), null);
 			}
 
 			case MOVE -> {
@@ -215,7 +340,7 @@ public class Editor extends JFrame {
 				movingId = getShapeID(p);
 				if (movingId == -1) break;
 				moveFrom = p;
-				curr = sketch.shapeFromID(movingId);
+				layers.setActive(movingId); // drawn afresh in its place, with everything else cached
 			}
 
 			// if clicked in a shape (id != -1), sends command to server to delete shape
@@ -226,6 +351,9 @@ public class Editor extends JFrame {
 				curr = null;
 			}
 
+			// grabs the sketch at p, to drag it around
+			case PAN -> panFrom = p;
+
 			// if clicked in a shape (id != -1), sends command to server to recolor shape to editor current color
 			case RECOLOR -> {
 				int id = getShapeID(p);
@@ -234,25 +362,29 @@ public class Editor extends JFrame {
 				comm.sendRecolor(id, color.getRGB());
 			}
 		}
-		repaint();
 	}
 
 	/**
 	 * Helper method for drag to new point
-	 * In drawing mode, update the other corner of the object;
-	 * in moving mode, (request to) drag the object
+	 * In drawing mode, update the other corner of the object (repainting where it was and where it is now);
+	 * in moving mode, (request to) drag the object (repainted once the server moves it)
 	 */
 	private void handleDrag(Point p) {
 		switch (mode) {
 			case DRAW -> {
+				int[] before = curr.getBounds().clone();
 				switch (shapeType) {
 					case "ellipse" -> {
 						Ellipse draw = (Ellipse) curr;
 						draw.setCorners(drawFrom.x, drawFrom.y, p.x, p.y);
 					}
 					case "freehand" -> {
+						// only the stroke's new piece, from its last point to p, needs painting
 						Polyline draw = (Polyline) curr;
+						int x = draw.getX(draw.size() - 1), y = draw.getY(draw.size() - 1);
+						before = new int[] { Math.min(x, p.x), Math.min(y, p.y), Math.max(x, p.x), Math.max(y, p.y) };
 						draw.addPoint(p);
+						comm.sendPoint(p);
 					}
 					case "rectangle" -> {
 						Rectangle draw = (Rectangle) curr;
@@ -263,6 +395,7 @@ public class Editor extends JFrame {
 						draw.setEnd(p.x, p.y);
 					}
 				}
+				repaintDamage(before, curr instanceof Polyline ? before : curr.getBounds());
 			}
 
 			// if there is a selected object to move, sends command to server to make appropriate translation
@@ -271,9 +404,12 @@ public class Editor extends JFrame {
 				comm.sendMove(movingId, moveFrom, p);
 				moveFrom = p;
 			}
-		}
 
-		repaint();
+			// shifts the view so the point grabbed is back under the mouse
+			case PAN -> {
+				if (panFrom != null) setView(originX + panFrom.x - p.x, originY + panFrom.y - p.y, scale);
+			}
+		}
 	}
 
 	/**
@@ -283,17 +419,23 @@ public class Editor extends JFrame {
 	 */
 	private void handleRelease() {
 		switch (mode) {
-			// sends command to server to add modified/new shape and sets current shape to nothing
+			// sends command to server to add modified/new shape (or finish the stroke) and sets current shape to nothing
 			case DRAW -> {
-				comm.sendAdd(curr);
+				if (curr instanceof Polyline) comm.endStroke();
+				else comm.sendAdd(curr);
+				repaintDamage(curr.getBounds(), null); // it's gone until the server adds it
 				curr = null;
 			}
 
-			// resets movingID to -1 (no shape being moved)
-			case MOVE -> movingId = -1;
-		}
+			// sends whatever of the drag hasn't gone out yet, and resets movingID to -1 (no shape being moved)
+			case MOVE -> {
+				if (movingId != -1) comm.flushMove();
+				movingId = -1;
+				layers.setActive(SketchLayers.NONE);
+			}
 
-		repaint();
+			case PAN -> panFrom = null;
+		}
 	}
 
 	/**
@@ -303,24 +445,21 @@ public class Editor extends JFrame {
 	 * @return ID of targeted shape
 	 */
 	private int getShapeID (Point p) {
-		// base case: returns -1, means no shape found at location
-		int shapeID = -1;
-		for (Integer id: sketch.getIDsInOrder()) {
-			Shape s = sketch.shapeFromID(id);
-			if (s.contains(p.x, p.y)) { shapeID = id; }
-		}
-		return shapeID;
+		// asks the sketch's grid, which only tests the shapes near p (returns -1 if no shape found at location)
+		return sketch.topShapeAt(p.x, p.y);
 	}
 
 	/**
 	 * Adds shape to local editor's sketch per command from server
+	 * (each change repaints just where the shape was and where it is now)
 	 * @param id ID of shape to add
 	 * @param shape shape to add with descriptions
 	 */
 	public void add (int id, Shape shape) {
+		int[] before = boundsOf(id); // if it replaces one
 		sketch.addShapeFromClient(id, shape);
 		System.out.println("adding " + shape.toString());
-		repaint();
+		repaintShape(id, before, shape.getBounds());
 	}
 
 	/**
@@ -330,9 +469,27 @@ public class Editor extends JFrame {
 	 * @param dy y distance to translate shape
 	 */
 	public void move (int id, int dx, int dy) {
-		Shape s = sketch.shapeFromID(id);
-		s.moveBy(dx, dy);
-		repaint();
+		int[] before = boundsOf(id);
+		sketch.moveShape(id, dx, dy);
+		repaintShape(id, before, boundsOf(id));
+	}
+
+	/**
+	 * Extends a stroke in local editor's sketch per command from server, as it's being drawn
+	 * @param id ID of the stroke
+	 * @param points points to add to it, x and y interleaved
+	 */
+	public void append (int id, int[] points) {
+		if (!(sketch.shapeFromID(id) instanceof Polyline stroke)) return;
+		// only the new piece, from the stroke's last point through the new ones, needs painting
+		int[] piece = { stroke.getX(stroke.size() - 1), stroke.getY(stroke.size() - 1), 0, 0 };
+		piece[2] = piece[0]; piece[3] = piece[1];
+		for (int i = 0; i < points.length; i += 2) {
+			piece[0] = Math.min(piece[0], points[i]); piece[1] = Math.min(piece[1], points[i + 1]);
+			piece[2] = Math.max(piece[2], points[i]); piece[3] = Math.max(piece[3], points[i + 1]);
+		}
+		sketch.appendPoints(id, points);
+		repaintShape(id, piece, null);
 	}
 
 	/**
@@ -341,8 +498,18 @@ public class Editor extends JFrame {
 	 * @param c color to recolor to
 	 */
 	public void recolor (int id, Color c) {
-		sketch.shapeFromID(id).setColor(c);
+		sketch.recolorShape(id, c);
 		System.out.println("recoloring shape ID to " + color);
+		repaintShape(id, boundsOf(id), null);
+	}
+
+	/**
+	 * Empties the local editor's sketch, before the server sends it over again
+	 */
+	public void reset () {
+		sketch.clear();
+		System.out.println("resetting sketch");
+		layers.invalidateAll();
 		repaint();
 	}
 
@@ -351,12 +518,36 @@ public class Editor extends JFrame {
 	 * @param id ID of shape to delete
 	 */
 	public void delete (int id) {
+		int[] before = boundsOf(id);
 		sketch.removeShape(id);
 		System.out.println("deleting shape " + id);
-		repaint();
+		repaintShape(id, before, null);
+	}
+
+	/**
+	 * Lets go of a shape that has gone out of view, per command from server (it stays in the server's sketch,
+	 * which sends it again if it comes back into view); that goes for the one being dragged too: the drag carries on
+	 * at the server, which stops sending its changes, so a copy kept here would go stale
+	 * @param id ID of shape to let go of
+	 */
+	public void evict (int id) {
+		int[] before = boundsOf(id);
+		sketch.removeShape(id);
+		repaintShape(id, before, null);
 	}
 
 	public static void main(String[] args) {
+		Options options = Options.parse(args);
+		Threads.setVirtual(options.getBoolean("virtual"));
+		binary = !options.getBoolean("text");
+		moveFlushMillis = options.getInt("move-rate", moveFlushMillis);
+		room = options.getString("room", null);
+		if (room != null && !WireProtocol.isRoomName(room)) {
+			System.err.println("bad room name " + room + " (up to " + WireProtocol.MAX_ROOM + " letters, digits, _ and -)");
+			return;
+		}
+		renderThreads = options.getInt("render-threads", renderThreads);
+		wholeSketch = options.getBoolean("whole-sketch");
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				new Editor();
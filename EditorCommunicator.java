@@ -1,28 +1,95 @@
 import java.io.*;
 import java.net.Socket;
 import java.awt.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
 
 /**
- * Handles communication to/from the server for the editor
+ * Handles communication to/from the server for the editor.
+ * Operations from the server are decoded on the communicator's thread and queued; the event dispatch thread takes
+ * them off in batches, at most once a frame, and makes them to the sketch with a single repaint per batch.
+ * An editor that only wants the part of the sketch in view says what that is (and again each time it pans or zooms),
+ * and the server sends just that part, EVICTing shapes as they leave it
  * 
  * @author Reed Levinson, Spring 2023
  */
-public class EditorCommunicator extends Thread {
-	private PrintWriter out;		// to server
-	private BufferedReader in;		// from server
-	protected Editor editor;		// handling communication for
+public class EditorCommunicator implements Runnable {
+	private static final int MAX_RECONNECT_MILLIS = 5000;	// longest wait between attempts to reconnect
+	private static final int FRAME_MILLIS = 16;				// least time between batches of operations from the server
+
+	private String serverIP;			// where the server is
+	private boolean binary;				// whether to ask for the binary protocol
+	private String room;				// the room to join (null: the default)
+	private int[] view;					// the part of the sketch in view, {left, top, right, bottom} (null: all of it)
+	private Socket sock;				// current connection to server
+	private OutputStream out;			// to server
+	private InputStream in;				// from server
+	protected Editor editor;			// handling communication for
+	private boolean binaryOut = false;	// whether requests now go to the server in binary
+	private long epoch = -1;			// the server run we're in sync with (-1 before the first WELCOME)
+	private long lastSeq = 0;			// sequence number of the last operation from the server applied
+	private CommandParser parser = new CommandParser();		// for text from the server
+
+	// Operations from the server, waiting for the event dispatch thread
+	private ConcurrentLinkedQueue<Command> incoming = new ConcurrentLinkedQueue<>();
+	private AtomicBoolean drainScheduled = new AtomicBoolean(false);	// whether a batch is on its way to being applied
+	private volatile long lastDrain = 0;		// when (ms) the last batch was applied
+
+	// Drag coalescing: MOVEs of one shape are summed and sent at most once per moveFlushMillis
+	private int moveFlushMillis = 16;	// 0 sends every MOVE right away
+	private int pendingMoveId = -1;		// shape with drag not yet sent (if any; else -1)
+	private int pendingDx, pendingDy;	// how far it has been dragged since the last MOVE sent
+	private long lastMoveSent = 0;		// when (ms) the last MOVE went out
+	private boolean flushScheduled = false;
+
+	// Freehand streaming: a stroke's new points are likewise gathered and sent as one APPEND per moveFlushMillis
+	private int[] pendingPoints = new int[64];	// points drawn but not yet sent, x and y interleaved
+	private int pendingPointCount = 0;			// ... how many ints of it
+	private long lastAppendSent = 0;			// when (ms) the last APPEND went out
+	private boolean appendScheduled = false;
+
+	// Panning and zooming: likewise, the view is sent at most once per moveFlushMillis
+	private int[] sentView = null;				// the view the server last heard about
+	private long lastViewSent = 0;				// when (ms) it did
+	private boolean viewScheduled = false;
+	private ScheduledExecutorService mover = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "editor-move-flush");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Establishes connection and in/out pair, and asks the server for the binary protocol (or text)
+	 */
+	public EditorCommunicator(String serverIP, Editor editor, boolean binary) {
+		this(serverIP, editor, binary, null);
+	}
 
 	/**
-	 * Establishes connection and in/out pair
+	 * Establishes connection and in/out pair, and asks the server for the binary protocol (or text) and the given room
 	 */
-	public EditorCommunicator(String serverIP, Editor editor) {
+	public EditorCommunicator(String serverIP, Editor editor, boolean binary, String room) {
+		this(serverIP, editor, binary, room, null);
+	}
+
+	/**
+	 * Establishes connection and in/out pair, and asks the server for the binary protocol (or text), the given room,
+	 * and just the part of the sketch in view (null: all of it)
+	 */
+	public EditorCommunicator(String serverIP, Editor editor, boolean binary, String room, int[] view) {
+		this.serverIP = serverIP;
 		this.editor = editor;
-		System.out.println("connecting to " + serverIP + "...");
+		this.binary = binary;
+		this.room = room;
+		this.view = view;
 		try {
-			Socket sock = new Socket(serverIP, 4242);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			System.out.println("...connected");
+			connect();
 		}
 		catch (IOException e) {
 			System.err.println("couldn't connect");
@@ -31,80 +98,211 @@ public class EditorCommunicator extends Thread {
 	}
 
 	/**
-	 * Sends message to the server
+	 * Opens a connection to the server and says HELLO, asking to resume from lastSeq if we've been connected before
+	 * (or with a view, which can't resume, starting afresh)
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	private synchronized void connect() throws IOException {
+		System.out.println("connecting to " + serverIP + "...");
+		sock = new Socket(serverIP, 4242);
+		sock.setTcpNoDelay(true);
+		out = new BufferedOutputStream(sock.getOutputStream());
+		in = new BufferedInputStream(sock.getInputStream());
+		binaryOut = false;
+		System.out.println("...connected");
+		if (view != null) {
+			// what we have depends on what we've been looking at, so throw it away and get what's in view now
+			if (epoch >= 0) receive(Command.reset());
+			sentView = view;
+			send(WireProtocol.hello(binary, room, view));
+		}
+		else {
+			send(epoch < 0 ? WireProtocol.hello(binary, room) : WireProtocol.hello(binary, room, epoch, lastSeq));
+		}
 	}
 
 	/**
-	 * Keeps listening for and handling (your code) messages from the server
+	 * Keeps trying to reconnect, waiting longer after each failure
 	 */
-	public void run() {
-		try {
-			// Handle messages
-			String line;
-			while ((line = in.readLine()) != null) {
-				System.out.println(line);
-				parseCommand(line);
+	private void reconnect() {
+		int wait = 100;
+		while (true) {
+			try {
+				Thread.sleep(wait);
+				connect();
+				return;
+			}
+			catch (IOException e) {
+				System.err.println("couldn't reconnect: " + e.getMessage());
+				wait = Math.min(wait * 2, MAX_RECONNECT_MILLIS);
+			}
+			catch (InterruptedException e) {
+				return;
 			}
 		}
+	}
+
+	/**
+	 * Starts listening to the server on its own (platform or virtual) thread
+	 */
+	public void start() {
+		Threads.start("editor-communicator", this);
+	}
+
+	/**
+	 * Sends message (a text line) to the server
+	 */
+	public synchronized void send(String msg) {
+		try {
+			out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
 		catch (IOException e) {
-			e.printStackTrace();
+			System.err.println("couldn't send to server: " + e.getMessage());
 		}
-		finally {
-			System.out.println("server hung up");
+	}
+
+	/**
+	 * Sends a request to the server, in binary if we've switched to it
+	 */
+	public synchronized void send(Command c) {
+		flushMove(); // keep any drag (or stroke) in order ahead of this request
+		flushPoints();
+		write(c);
+	}
+
+	/**
+	 * Writes a request to the server, in binary if we've switched to it
+	 */
+	private synchronized void write(Command c) {
+		if (!binaryOut) {
+			send(c.toString());
+			return;
+		}
+		try {
+			out.write(WireProtocol.encode(c));
+			out.flush();
+		}
+		catch (IOException e) {
+			System.err.println("couldn't send to server: " + e.getMessage());
 		}
 	}
 
 	/**
-	 * Takes in a command from server, parses it, and calls method
-	 * for client editor to make appropriate changes to sketch
-	 * @param command command from server to be parsed
+	 * Once the server has agreed to binary, tells it so and sends everything after that in binary
 	 */
-	public void parseCommand (String command) {
-		// breaks command across spaces
-		String[] parts = command.split(" ");
-		switch (parts[0]) {
-			// if ADD, extracts shape info from command, checks which shape to generate,
-			// generates that shape, and tells editor to add to sketch
-			case "ADD" -> {
-				Shape shape = null;
-				String[] info = command.split("\\|")[1].split(" ");
-				switch (parts[2]) {
-					case "ellipse" -> {
-						shape = Ellipse.generateShapeFromParts(info);
-					}
-					case "rectangle" -> {
-						shape = Rectangle.generateShapeFromParts(info);
-					}
-					case "polyline" -> {
-						shape = Polyline.generateShapeFromParts(info);
-					}
-					case "segment" -> {
-						shape = Segment.generateShapeFromParts(info);
+	private synchronized void startBinary() {
+		send(WireProtocol.BINARY);
+		binaryOut = true;
+	}
+
+	/**
+	 * Keeps listening for and handling (your code) messages from the server;
+	 * if the connection is lost, reconnects and picks up where it left off
+	 */
+	public void run() {
+		while (true) {
+			listen();
+			System.out.println("server hung up; reconnecting");
+			reconnect();
+		}
+	}
+
+	/**
+	 * Handles messages from the current connection until it ends
+	 */
+	private void listen() {
+		try {
+			// Handle messages: text lines until the server's WELCOME binary, then binary frames
+			boolean binaryIn = false;
+			while (true) {
+				if (binaryIn) {
+					Command c = WireProtocol.readFrame(in);
+					if (c == null) break;
+					receive(c);
+				}
+				else {
+					String line = WireProtocol.readLine(in);
+					if (line == null) break;
+					if (line.startsWith(WireProtocol.WELCOME)) {
+						epoch = WireProtocol.epoch(line);
+						binaryIn = WireProtocol.isBinary(line);
+						if (binaryIn) startBinary();
+						continue;
 					}
+					System.out.println(line);
+					parseCommand(line);
 				}
-
-				editor.add(Integer.parseInt(parts[1]), shape);
 			}
-
-			// if MOVE, tells editor to move particular shape (from ID) (parts[1])
-			// a certain dx (parts[2]) and dy (parts[3]
-			case "MOVE" -> {
-				editor.move(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+		}
+		catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+		finally {
+			try {
+				sock.close();
 			}
-
-			// if RECOLOR, tells editor to recolor particular shape (from ID) (parts[1]) to color ((parts[2])
-			case "RECOLOR" -> {
-				editor.recolor(Integer.parseInt(parts[1]), new Color(Integer.parseInt(parts[2])));
+			catch (IOException e) {
+				e.printStackTrace();
 			}
+		}
+	}
 
-			// if DELETE, tells editor to delete particular shape (from ID) (parts[1]) from sketch
-			case "DELETE" -> {
-				editor.delete(Integer.parseInt(parts[1]));
-			}
+	/**
+	 * Queues a command from the server for the event dispatch thread, which takes the queue in the next frame's batch
+	 * (a SYNC just notes how far we've got, right away)
+	 */
+	private void receive(Command c) {
+		if (c.getOp() == Command.Op.SYNC) {
+			lastSeq = c.getSeq();
+			return;
 		}
+		incoming.add(c);
+		if (!drainScheduled.compareAndSet(false, true)) return;
+		long wait = lastDrain + FRAME_MILLIS - System.currentTimeMillis();
+		if (wait <= 0) SwingUtilities.invokeLater(this::drain);
+		else mover.schedule(() -> SwingUtilities.invokeLater(this::drain), wait, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * (on the event dispatch thread) Applies all the commands from the server queued so far, as one batch
+	 */
+	private void drain() {
+		drainScheduled.set(false); // anything queued after this point gets a batch of its own
+		lastDrain = System.currentTimeMillis();
+		editor.applyBatch(() -> {
+			Command c;
+			while ((c = incoming.poll()) != null) apply(c);
+		});
+	}
+
+	/**
+	 * Calls method for client editor to make the changes to sketch for a command from server
+	 * (on the event dispatch thread)
+	 * @param c command from server
+	 */
+	public void apply (Command c) {
+		switch (c.getOp()) {
+			case ADD -> editor.add(c.getID(), c.getShape());
+			case MOVE -> editor.move(c.getID(), c.getDx(), c.getDy());
+			case RECOLOR -> editor.recolor(c.getID(), c.getColor());
+			case DELETE -> editor.delete(c.getID());
+			case APPEND -> editor.append(c.getID(), c.getPoints());
+			case EVICT -> editor.evict(c.getID());
+			case SYNC -> lastSeq = c.getSeq();
+			case RESET -> editor.reset();
+			case BEGIN, END, VIEW -> { } // only go to the server
+		}
+	}
+
+	/**
+	 * Takes in a command from server, parses it, and queues it
+	 * for client editor to make appropriate changes to sketch
+	 * @param command command from server to be parsed
+	 */
+	public void parseCommand (String command) {
+		// a fresh command each time, since it waits in the queue
+		Command parsed = new Command();
+		if (parser.parse(command, parsed)) receive(parsed);
 	}
 
 
@@ -115,21 +313,126 @@ public class EditorCommunicator extends Thread {
 	 * @param shape shape to be added
 	 */
 	public void sendAdd(Shape shape) {
-		String s = "";
-		s += "ADD " + shape.toString();
-		send(s);
+		send(Command.add(0, shape));
 	}
 
 	/**
-	 * Sends a MOVE command to server from client/editor
+	 * Sets how often drag MOVEs are sent (0 for every mouse event)
+	 */
+	public void setMoveFlushMillis(int millis) {
+		moveFlushMillis = millis;
+	}
+
+	/**
+	 * Sends a MOVE command to server from client/editor.
+	 * Drags are coalesced: if a MOVE went out less than moveFlushMillis ago, this one is added to
+	 * the shape's pending distance and sent (summed) when the interval is up.
 	 * @param id ID of shape to be moved
 	 * @param p1 initial position (of mouse in shape)
 	 * @param p2 final position (of mouse in shape) after move
 	 */
-	public void sendMove(Integer id, Point p1, Point p2) {
-		String s = "";
-		s += "MOVE " + id + " " + (p2.x - p1.x) + " " + (p2.y - p1.y);
-		send(s);
+	public synchronized void sendMove(Integer id, Point p1, Point p2) {
+		if (pendingMoveId != id) flushMove();
+		pendingMoveId = id;
+		pendingDx += p2.x - p1.x;
+		pendingDy += p2.y - p1.y;
+
+		long wait = lastMoveSent + moveFlushMillis - System.currentTimeMillis();
+		if (wait <= 0) {
+			flushMove(); // the connection has been idle for a while: no need to hold this one back
+		}
+		else if (!flushScheduled) {
+			flushScheduled = true;
+			mover.schedule(this::flushMove, wait, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends the drag accumulated so far (if any); called when a drag ends so the final position isn't lost
+	 */
+	public synchronized void flushMove() {
+		flushScheduled = false;
+		if (pendingMoveId == -1) return;
+		if (pendingDx != 0 || pendingDy != 0) write(Command.move(pendingMoveId, pendingDx, pendingDy));
+		pendingMoveId = -1;
+		pendingDx = 0; pendingDy = 0;
+		lastMoveSent = System.currentTimeMillis();
+	}
+
+	/**
+	 * Starts streaming a freehand stroke: the server adds it (as drawn so far) right away, for everyone to see,
+	 * and the points drawn after this go to it (see sendPoint) until endStroke
+	 * @param stroke the stroke, as drawn so far
+	 */
+	public void beginStroke(Polyline stroke) {
+		send(Command.begin(stroke));
+	}
+
+	/**
+	 * Adds a point to the stroke being streamed.
+	 * Like drags, points are gathered: if an APPEND went out less than moveFlushMillis ago, this one waits
+	 * to go with the rest drawn in the meantime.
+	 */
+	public synchronized void sendPoint(Point p) {
+		if (pendingPointCount + 2 > pendingPoints.length) pendingPoints = Arrays.copyOf(pendingPoints, pendingPoints.length * 2);
+		pendingPoints[pendingPointCount++] = p.x;
+		pendingPoints[pendingPointCount++] = p.y;
+
+		long wait = lastAppendSent + moveFlushMillis - System.currentTimeMillis();
+		if (wait <= 0) {
+			flushPoints();
+		}
+		else if (!appendScheduled) {
+			appendScheduled = true;
+			mover.schedule(this::flushPoints, wait, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends the points of the stroke gathered so far (if any)
+	 */
+	public synchronized void flushPoints() {
+		appendScheduled = false;
+		if (pendingPointCount == 0) return;
+		write(Command.append(0, Arrays.copyOf(pendingPoints, pendingPointCount)));
+		pendingPointCount = 0;
+		lastAppendSent = System.currentTimeMillis();
+	}
+
+	/**
+	 * Finishes the stroke being streamed, sending whatever of it hasn't gone out yet
+	 */
+	public void endStroke() {
+		send(Command.end());
+	}
+
+	/**
+	 * Tells the server the part of the sketch now in view, {left, top, right, bottom}, after panning or zooming
+	 * (unless it's sending all of it); like drags, a view is held back if one went out less than moveFlushMillis ago,
+	 * and only the latest is sent
+	 */
+	public synchronized void sendView(int[] box) {
+		if (view == null) return;
+		view = box;
+		long wait = lastViewSent + moveFlushMillis - System.currentTimeMillis();
+		if (wait <= 0) {
+			flushView();
+		}
+		else if (!viewScheduled) {
+			viewScheduled = true;
+			mover.schedule(this::flushView, wait, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends the latest view, if the server hasn't heard it yet
+	 */
+	public synchronized void flushView() {
+		viewScheduled = false;
+		if (Arrays.equals(view, sentView)) return;
+		write(Command.view(view));
+		sentView = view;
+		lastViewSent = System.currentTimeMillis();
 	}
 
 	/**
@@ -137,8 +440,7 @@ public class EditorCommunicator extends Thread {
 	 * @param id ID of shape to be deleted
 	 */
 	public void sendDelete(Integer id) {
-		String s = "DELETE " + id;
-		send(s);
+		send(Command.delete(id));
 	}
 
 	/**
@@ -147,8 +449,7 @@ public class EditorCommunicator extends Thread {
 	 * @param color new color of shape
 	 */
 	public void sendRecolor(Integer id, int color) {
-		String s = "RECOLOR "+ id + " " + color;
-		send(s);
+		send(Command.recolor(id, color));
 	}
 	
 }
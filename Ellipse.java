@@ -10,6 +10,7 @@ import java.awt.Graphics;
  */
 public class Ellipse implements Shape {
 	private int x1, y1, x2, y2;		// upper left and lower right
+	private int[] bounds = new int[4];	// the corners again, as getBounds gives them
 	private Color color;
 
 	/**
@@ -19,6 +20,7 @@ public class Ellipse implements Shape {
 		this.x1 = x1; this.x2 = x1;
 		this.y1 = y1; this.y2 = y1;
 		this.color = color;
+		updateBounds();
 	}
 
 	/**
@@ -37,7 +39,8 @@ public class Ellipse implements Shape {
 		this.x1 = Math.min(x1, x2);
 		this.y1 = Math.min(y1, y2);
 		this.x2 = Math.max(x1, x2);
-		this.y2 = Math.max(y1, y2);		
+		this.y2 = Math.max(y1, y2);
+		updateBounds();		
 	}
 
 	@Override
@@ -54,8 +57,26 @@ public class Ellipse implements Shape {
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		updateBounds();
 	}
 
+	@Override
+	public int[] getBounds() {
+		return bounds;
+	}
+
+	private void updateBounds() {
+		bounds[0] = x1; bounds[1] = y1; bounds[2] = x2; bounds[3] = y2;
+	}
+
+	public int getX1() { return x1; }
+
+	public int getY1() { return y1; }
+
+	public int getX2() { return x2; }
+
+	public int getY2() { return y2; }
+
 	@Override
 	public Color getColor() {
 		return color;
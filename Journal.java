@@ -0,0 +1,267 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only log of every operation the server has applied, so a restart can rebuild the sketch.
+ * It is a directory of segment files, each memory-mapped and named for the sequence number of its first operation.
+ * Each record is the operation's binary frame, preceded by its length and a CRC32 of it (4 bytes each);
+ * a zero length marks the end of a segment's records, and a bad CRC marks an append cut short by a crash.
+ * Appending copies into the mapping; when that reaches the disk depends on the sync policy.
+ * Appends and commits come from the sequencer thread only.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class Journal {
+	/**
+	 * When appended operations are forced to disk: after every one, once per batch the sequencer applies,
+	 * or every so often on a background thread, shared by all the journals (the sequencer never waits for the disk)
+	 */
+	public enum Sync {
+		EVERY, GROUP, INTERVAL
+	}
+
+	public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+	private static final int HEADER = 8;		// record length and CRC
+	// with Sync.INTERVAL, forces every journal's appends (one thread however many rooms are open)
+	private static final ScheduledExecutorService syncer =
+			Executors.newSingleThreadScheduledExecutor(Threads.daemons("sketch-journal-sync"));
+
+	private File dir;							// where the segments live
+	private Sync sync;
+	private int segmentBytes;					// size of a new segment
+	private List<Segment> segments = new ArrayList<>();	// oldest first; the last one is being appended to
+	private volatile Segment current;
+	private volatile int written;				// end of the records in the current segment
+	private int synced;							// how much of the current segment has been forced (under lock)
+	private long seq;							// sequence number of the last record
+	private CRC32 crc = new CRC32();
+	private ScheduledFuture<?> syncing = null;	// with Sync.INTERVAL, this journal's turns on syncer
+
+	/**
+	 * Opens (or creates) the journal in dir; call replay before appending to it
+	 * @param intervalMillis with Sync.INTERVAL, how often to force appends to disk
+	 */
+	public Journal(File dir, Sync sync, int intervalMillis, int segmentBytes) throws IOException {
+		this.dir = dir;
+		this.sync = sync;
+		this.segmentBytes = segmentBytes;
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("can't create journal directory " + dir);
+
+		if (sync == Sync.INTERVAL) {
+			syncing = syncer.scheduleWithFixedDelay(() -> {
+				try {
+					force();
+				}
+				catch (RuntimeException e) {
+					e.printStackTrace(); // and carry on syncing
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Rebuilds the sketch from the journal, skipping operations up to and including fromSeq (already in the sketch),
+	 * and gets ready to append after the last good record
+	 * @return the sequence number of the last operation in the journal (fromSeq if it has nothing after that)
+	 */
+	public long replay(Sketch sketch, long fromSeq) throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".journal"));
+		long[] starts = new long[files == null ? 0 : files.length];
+		for (int i = 0; i < starts.length; i++) starts[i] = firstSeq(files[i]);
+		Arrays.sort(starts);
+
+		seq = fromSeq;
+		for (int i = 0; i < starts.length; i++) {
+			// a segment wholly before fromSeq (or one that's lost its predecessors) is of no use
+			long next = i + 1 < starts.length ? starts[i + 1] : Long.MAX_VALUE;
+			if (next - 1 <= fromSeq) continue;
+			if (starts[i] > seq + 1) {
+				// lost records (a torn append, or a missing file): what follows can't be applied, so set it aside
+				System.err.println("journal: operations " + (seq + 1) + " to " + (starts[i] - 1) + " are missing");
+				for (int j = i; j < starts.length; j++) {
+					File f = file(starts[j]);
+					if (!f.renameTo(new File(dir, f.getName() + ".corrupt"))) throw new IOException("can't set aside " + f);
+				}
+				current = null;
+				break;
+			}
+
+			Segment segment = Segment.open(file(starts[i]), starts[i], 0);
+			segments.add(segment);
+			ByteBuffer buf = segment.map.duplicate();
+			long s = starts[i];
+			while (buf.remaining() >= HEADER) {
+				int start = buf.position();
+				int length = buf.getInt();
+				int check = buf.getInt();
+				if (length <= 0 || length > buf.remaining()) {
+					buf.position(start);
+					break;
+				}
+				if (s <= fromSeq) {
+					// already in the sketch (from a checkpoint); a later good record vouches for this one
+					buf.position(buf.position() + length);
+					s++;
+					continue;
+				}
+				ByteBuffer frame = buf.slice(buf.position(), length);
+				crc.reset();
+				crc.update(frame.duplicate());
+				if ((int) crc.getValue() != check) {
+					System.err.println("journal: dropping torn record " + s + " in " + segment.file.getName());
+					buf.position(start);
+					break;
+				}
+				buf.position(buf.position() + length);
+				apply(sketch, WireProtocol.decodeFrame(frame));
+				s++;
+			}
+			seq = Math.max(seq, s - 1);
+			current = s - 1 == seq ? segment : null; // if it ends short of fromSeq, start a new one after that
+			written = synced = buf.position();
+		}
+		return seq;
+	}
+
+	/**
+	 * Applies a replayed operation to the sketch, as the sequencer did when it first came in
+	 */
+	private static void apply(Sketch sketch, Command c) {
+		switch (c.getOp()) {
+			case ADD -> sketch.restoreShape(c.getID(), c.getShape());
+			case MOVE -> sketch.moveShape(c.getID(), c.getDx(), c.getDy());
+			case RECOLOR -> sketch.recolorShape(c.getID(), c.getColor());
+			case APPEND -> sketch.appendPoints(c.getID(), c.getPoints());
+			case DELETE -> sketch.removeShape(c.getID());
+			default -> { }
+		}
+	}
+
+	/**
+	 * Appends an operation (the next in sequence) to the journal
+	 */
+	public void append(Message m) throws IOException {
+		byte[] frame = m.getBytes(true);
+		if (current == null || current.map.capacity() - written < HEADER + frame.length) roll(HEADER + frame.length);
+
+		crc.reset();
+		crc.update(frame);
+		MappedByteBuffer map = current.map;
+		map.position(written);
+		map.putInt(frame.length);
+		map.putInt((int) crc.getValue());
+		map.put(frame);
+		written = map.position();
+		seq++;
+		if (sync == Sync.EVERY) force();
+	}
+
+	/**
+	 * Marks the end of a batch of appends; with Sync.GROUP, forces them to disk together
+	 */
+	public void commit() {
+		if (sync == Sync.GROUP) force();
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Deletes the segments that hold nothing after seq (once a checkpoint has it all); the current one always stays.
+	 * Called from the checkpoint writer, while the sequencer carries on appending.
+	 */
+	public synchronized void truncate(long seq) {
+		while (segments.size() > 1 && segments.get(1).firstSeq - 1 <= seq) {
+			Segment old = segments.remove(0);
+			if (!old.file.delete()) System.err.println("journal: couldn't delete " + old.file.getName());
+		}
+	}
+
+	/**
+	 * Forces what's been appended to disk and lets go of the segments (when their room is put away);
+	 * nothing may be appended after this
+	 */
+	public synchronized void close() {
+		force();
+		if (syncing != null) syncing.cancel(false);
+		segments.clear();
+		current = null;
+	}
+
+	/**
+	 * @return the sequence number of the last operation appended
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Forces whatever has been appended to the current segment since the last time to disk
+	 */
+	public synchronized void force() {
+		Segment segment = current;
+		int end = written;
+		if (segment == null || end <= synced) return;
+		segment.map.force(synced, end - synced);
+		synced = end;
+	}
+
+	/**
+	 * Finishes the current segment (forcing it to disk) and starts a new one big enough for the next record
+	 */
+	private synchronized void roll(int needed) throws IOException {
+		if (current != null) current.map.force();
+		long first = seq + 1;
+		current = Segment.open(file(first), first, Math.max(segmentBytes, needed + HEADER));
+		segments.add(current);
+		written = synced = 0;
+	}
+
+	private File file(long firstSeq) {
+		return new File(dir, String.format("segment-%020d.journal", firstSeq));
+	}
+
+	private static long firstSeq(File f) {
+		String name = f.getName();
+		return Long.parseLong(name.substring("segment-".length(), name.length() - ".journal".length()));
+	}
+
+	///////////////////////////////////////////////////////////////////////
+
+	/**
+	 * One segment file and its mapping
+	 */
+	private static class Segment {
+		private File file;
+		private long firstSeq;				// sequence number of its first record
+		private MappedByteBuffer map;
+
+		/**
+		 * Maps a segment file, creating it at the given size if it doesn't exist (0: use the existing file's size)
+		 */
+		public static Segment open(File file, long firstSeq, int size) throws IOException {
+			Segment s = new Segment();
+			s.file = file;
+			s.firstSeq = firstSeq;
+			try (FileChannel channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long length = size > 0 ? Math.max(size, channel.size()) : channel.size();
+				s.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			}
+			return s;
+		}
+	}
+}
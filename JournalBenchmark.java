@@ -0,0 +1,86 @@
+import java.awt.Color;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Measures the journal: append throughput under each sync policy, and how long recovery takes to replay it.
+ * The operations are a freehand-heavy mix: every tenth an ADD (half of them polylines), the rest MOVEs and RECOLORs.
+ * Usage: java JournalBenchmark [--ops=n] [--dir=path] [--batch=n] (--batch is the sequencer's batch size, for group commits)
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class JournalBenchmark {
+	public static void main(String[] args) throws IOException {
+		Options options = Options.parse(args);
+		int ops = options.getInt("ops", 1_000_000);
+		int batch = options.getInt("batch", 64);
+		File root = new File(options.getString("dir", System.getProperty("java.io.tmpdir")));
+		Message[] mix = mix();
+
+		for (Journal.Sync sync : Journal.Sync.values()) {
+			// fsync after every operation is orders of magnitude slower, so it gets fewer
+			int n = sync == Journal.Sync.EVERY ? Math.min(ops, 20_000) : ops;
+			File dir = Files.createTempDirectory(root.toPath(), "journal-bench").toFile();
+			Journal journal = new Journal(dir, sync, 100, Journal.DEFAULT_SEGMENT_BYTES);
+			journal.replay(new Sketch(), 0);
+
+			long start = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				journal.append(mix[i % mix.length]);
+				if (i % batch == batch - 1) journal.commit();
+			}
+			journal.commit();
+			journal.force();
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("%-8s append: %,12.0f ops/s (%,d ops, %.1f us/op)%n",
+					sync, n / (elapsed / 1e9), n, elapsed / 1e3 / n);
+
+			start = System.nanoTime();
+			Sketch sketch = new Sketch();
+			long replayed = new Journal(dir, sync, 100, Journal.DEFAULT_SEGMENT_BYTES).replay(sketch, 0);
+			elapsed = System.nanoTime() - start;
+			System.out.printf("%-8s replay: %,12.0f ops/s (%,d ops in %d ms, %,d shapes)%n",
+					sync, replayed / (elapsed / 1e9), replayed, elapsed / 1_000_000, sketch.size());
+
+			delete(dir);
+		}
+	}
+
+	/**
+	 * One round of operations, as the sequencer would have numbered them (ids 1 to 10 are added first)
+	 */
+	private static Message[] mix() {
+		Message[] mix = new Message[100];
+		int added = 0;
+		for (int i = 0; i < mix.length; i++) {
+			Command c;
+			if (i % 10 == 0) {
+				added++;
+				if (added % 2 == 0) {
+					c = Command.add(added, new Rectangle(10, 20, 300, 400, Color.black));
+				}
+				else {
+					Polyline stroke = new Polyline(new Point(300, 400), Color.red);
+					for (int j = 1; j < 100; j++) stroke.addPoint(new Point(300 + j, 400 - j));
+					c = Command.add(added, stroke);
+				}
+			}
+			else if (i % 10 == 9) {
+				c = Command.recolor(added, i * 1000);
+			}
+			else {
+				c = Command.move(added, i % 7 - 3, 2);
+			}
+			mix[i] = new Message(c, i + 1);
+		}
+		return mix;
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) for (File f : files) f.delete();
+		dir.delete();
+	}
+}
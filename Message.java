@@ -0,0 +1,163 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Something the server sends to its clients, ready in both the text and the binary protocol,
+ * so that a broadcast is encoded once however many clients it goes to
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class Message {
+	private String text;				// text protocol line(s), without the final newline
+	private byte[] textBytes;			// text plus newline, encoded on first use
+	private byte[] frame;				// binary frame(s), or null if this can only go out as text (handshake)
+	private byte[] syncedText;			// text plus newline plus "SYNC seq" line, encoded on first use
+	private byte[] syncedFrame;			// frame(s) plus SYNC frame, encoded on first use
+	private boolean startsBinary;		// whether the connection's output is binary after this message
+	private boolean startsSync;			// whether the connection gets SYNCs after this message
+	private Command.Op op;				// if this is a single operation, which (null for batches and handshake)
+	private int id = -1;				// ... and the shape it applies to
+	private int dx, dy;					// if it is a MOVE, how far (for conflation)
+	private long seq;					// sequence number of the (last) operation, 0 if none
+
+	private Message() { }
+
+	/**
+	 * A single operation; the command is encoded right away, so it may be changed afterwards
+	 */
+	public Message(Command c) {
+		this(c, 0);
+	}
+
+	/**
+	 * A single operation, numbered by the sequencer
+	 */
+	public Message(Command c, long seq) {
+		this.seq = seq;
+		text = c.toString();
+		frame = WireProtocol.encode(c);
+		op = c.op;
+		id = c.id;
+		dx = c.dx; dy = c.dy;
+	}
+
+	/**
+	 * A handshake line, which always goes out as text
+	 */
+	public static Message text(String line) {
+		Message m = new Message();
+		m.text = line;
+		return m;
+	}
+
+	/**
+	 * The server's answer to a HELLO; with binary, the connection's output switches to binary right after it,
+	 * and either way, it gets SYNCs from then on
+	 */
+	public static Message welcome(boolean binary, long epoch) {
+		Message m = text(WireProtocol.welcome(binary, epoch));
+		m.startsBinary = binary;
+		m.startsSync = true;
+		return m;
+	}
+
+	/**
+	 * Several operations sent together, in order, as one message, which brings the client up to the highest seq among
+	 * them (not necessarily the last one's: a tick folds later MOVEs into earlier ones)
+	 */
+	public static Message batch(List<Message> parts) {
+		long seq = 0;
+		for (Message part : parts) seq = Math.max(seq, part.seq);
+		return batch(parts, seq);
+	}
+
+	/**
+	 * Several operations sent together, in order, as one message, which brings the client up to seq
+	 */
+	public static Message batch(List<Message> parts, long seq) {
+		StringBuilder sb = new StringBuilder();
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		for (Message part : parts) {
+			if (sb.length() > 0) sb.append('\n');
+			sb.append(part.text);
+			frames.writeBytes(part.frame);
+		}
+		Message m = new Message();
+		m.text = sb.toString();
+		m.frame = frames.toByteArray();
+		m.seq = seq;
+		return m;
+	}
+
+	/**
+	 * Merges two MOVEs of the same shape into one
+	 * @return the combined MOVE, or null if they aren't both MOVEs of one shape
+	 */
+	public static Message mergeMoves(Message first, Message second) {
+		if (first == null || first.op != Command.Op.MOVE || second.op != Command.Op.MOVE || first.id != second.id) return null;
+		return new Message(Command.move(first.id, first.dx + second.dx, first.dy + second.dy), second.seq);
+	}
+
+	/**
+	 * @return the bytes to write for this message, in binary or text
+	 */
+	public byte[] getBytes(boolean binary) {
+		if (binary && frame != null) return frame;
+		if (textBytes == null) textBytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+		return textBytes;
+	}
+
+	/**
+	 * @return the bytes to write for this message, in binary or text, followed by a SYNC if sync is on
+	 * and the message brings the client up to a new seq
+	 */
+	public byte[] getBytes(boolean binary, boolean sync) {
+		if (!sync || seq == 0 || (binary && frame == null)) return getBytes(binary);
+		if (binary) {
+			if (syncedFrame == null) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length + 10);
+				out.writeBytes(frame);
+				out.writeBytes(WireProtocol.encode(Command.sync(seq)));
+				syncedFrame = out.toByteArray();
+			}
+			return syncedFrame;
+		}
+		if (syncedText == null) syncedText = (text + "\nSYNC " + seq + "\n").getBytes(StandardCharsets.UTF_8);
+		return syncedText;
+	}
+
+	/**
+	 * @return which operation this is, or null for batches and handshake lines
+	 */
+	public Command.Op getOp() {
+		return op;
+	}
+
+	/**
+	 * @return the shape a single operation applies to, or -1 for batches and handshake lines
+	 */
+	public int getShapeID() {
+		return op == null ? -1 : id;
+	}
+
+	/**
+	 * @return the sequence number of the (last) operation in this message, or 0 if it doesn't bring the client up to one
+	 * (handshake lines, and all but the last chunk of a snapshot)
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public boolean startsBinary() {
+		return startsBinary;
+	}
+
+	public boolean startsSync() {
+		return startsSync;
+	}
+}
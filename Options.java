@@ -0,0 +1,53 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command-line options shared by the server, the editor and the echo server,
+ * given as --key=value (or just --key for a flag that is on)
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class Options {
+	private Map<String, String> values = new HashMap<>();	// option name -> value as typed
+
+	/**
+	 * Parses the arguments handed to main
+	 * @param args arguments of the form --key=value or --key
+	 * @return parsed options
+	 */
+	public static Options parse(String[] args) {
+		Options options = new Options();
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				System.err.println("ignoring argument " + arg);
+				continue;
+			}
+			int eq = arg.indexOf('=');
+			if (eq < 0) options.values.put(arg.substring(2), "true");
+			else options.values.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		return options;
+	}
+
+	/**
+	 * @return value of the option, or def if it was not given
+	 */
+	public String getString(String key, String def) {
+		return values.getOrDefault(key, def);
+	}
+
+	/**
+	 * @return value of the option as an int, or def if it was not given
+	 */
+	public int getInt(String key, int def) {
+		String v = values.get(key);
+		return v == null ? def : Integer.parseInt(v);
+	}
+
+	/**
+	 * @return whether the flag was given (and not set to false)
+	 */
+	public boolean getBoolean(String key) {
+		return Boolean.parseBoolean(values.getOrDefault(key, "false"));
+	}
+}
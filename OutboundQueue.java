@@ -0,0 +1,143 @@
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of messages waiting to be written to one client.
+ * The server only ever enqueues here; each connection drains its own queue, so a slow client can
+ * only fall behind itself, and what happens when it falls too far behind is up to the Policy.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class OutboundQueue {
+	/**
+	 * What to do with a message for a client whose queue is full
+	 */
+	public enum Policy {
+		DROP,		// throw the new message away (the client may miss operations)
+		CONFLATE,	// merge back-to-back MOVEs of the same shape to make room; disconnect if that isn't enough
+		DISCONNECT	// give up on the client
+	}
+
+	private ArrayDeque<Message> queue = new ArrayDeque<>();
+	private int capacity;				// most messages held at once
+	private Policy policy;				// what to do when full
+	private int highWaterMark = 0;		// deepest the queue has been
+	private long dropped = 0;			// messages thrown away (DROP) or merged away (CONFLATE)
+	private boolean closed = false;
+
+	public OutboundQueue(int capacity, Policy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	/**
+	 * Adds a message to the back of the queue, applying the policy if the queue is full
+	 * @param msg message to send
+	 * @return false if the client should be disconnected (queue is now closed)
+	 */
+	public synchronized boolean offer(Message msg) {
+		if (closed) return false;
+		if (queue.size() >= capacity) {
+			switch (policy) {
+				case DROP -> {
+					dropped++;
+					return true;
+				}
+				case CONFLATE -> {
+					if (!conflate(msg)) {
+						close();
+						return false;
+					}
+					if (queue.size() >= capacity) return true; // merged into the last message
+				}
+				case DISCONNECT -> {
+					close();
+					return false;
+				}
+			}
+		}
+		queue.add(msg);
+		highWaterMark = Math.max(highWaterMark, queue.size());
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Makes room by merging consecutive MOVEs of the same shape, first trying to fold msg into the last message
+	 * @return whether msg was merged or room was made for it
+	 */
+	private boolean conflate(Message msg) {
+		Message merged = Message.mergeMoves(queue.peekLast(), msg);
+		if (merged != null) {
+			queue.pollLast();
+			queue.add(merged);
+			dropped++;
+			return true;
+		}
+
+		ArrayDeque<Message> compacted = new ArrayDeque<>(queue.size());
+		for (Message m : queue) {
+			merged = Message.mergeMoves(compacted.peekLast(), m);
+			if (merged != null) {
+				compacted.pollLast();
+				compacted.add(merged);
+				dropped++;
+			}
+			else {
+				compacted.add(m);
+			}
+		}
+		queue = compacted;
+		return queue.size() < capacity;
+	}
+
+	/**
+	 * Waits for and removes the next message
+	 * @return the message, or null once the queue has been closed and emptied
+	 */
+	public synchronized Message take() throws InterruptedException {
+		while (queue.isEmpty() && !closed) wait();
+		return queue.poll();
+	}
+
+	/**
+	 * Removes the next message without waiting
+	 * @return the message, or null if there is none
+	 */
+	public synchronized Message poll() {
+		return queue.poll();
+	}
+
+	/**
+	 * Stops accepting messages, discarding any still waiting, and wakes up the writer
+	 */
+	public synchronized void close() {
+		closed = true;
+		queue.clear();
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return how many messages are waiting right now
+	 */
+	public synchronized int getDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the most messages that have ever been waiting at once
+	 */
+	public synchronized int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * @return how many messages were dropped or merged away because the client fell behind
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+}
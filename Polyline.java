@@ -1,32 +1,70 @@
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * A multi-segment Shape, with straight lines connecting "joint" points -- (x1,y1) to (x2,y2) to (x3,y3) ...
+ * The joints are packed into an int array, x and y in turn, kept where they were first put: moving the polyline
+ * just adds to an offset applied as they're read, so dragging a long freehand stroke doesn't touch its points.
  * 
  * @author Reed Levinson, Spring 2023
  */
 public class Polyline implements Shape {
+	public static final int REACH = 20;	// how far from its lines a point is still on the polyline
+
 	private Color color;
-	private List<Point> points = new ArrayList<>();
+	private int[] coords = new int[16];	// joints, x and y interleaved, less the offset
+	private int size = 0;				// how many joints
+	private int dx = 0, dy = 0;			// offset: how far it's been moved
+	// around the points, as far as contains reaches (empty until the first point)
+	private int[] bounds = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
 
 	public Polyline (Point p, Color color) {
-		points.add(p);
+		addPoint(p);
 		this.color = color;
 	}
 
 	public void addPoint (Point p) {
-		points.add(p);
+		addPoint(p.x, p.y);
+	}
+
+	public void addPoint (int x, int y) {
+		if (2 * size == coords.length) coords = Arrays.copyOf(coords, coords.length * 2);
+		coords[2 * size] = x - dx;
+		coords[2 * size + 1] = y - dy;
+		size++;
+		// as far as contains() reaches past the points
+		bounds[0] = Math.min(bounds[0], x - REACH); bounds[1] = Math.min(bounds[1], y - REACH);
+		bounds[2] = Math.max(bounds[2], x + REACH); bounds[3] = Math.max(bounds[3], y + REACH);
+	}
+
+	/**
+	 * @return how many joint points there are
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the x coordinate of joint i
+	 */
+	public int getX(int i) {
+		return coords[2 * i] + dx;
+	}
+
+	/**
+	 * @return the y coordinate of joint i
+	 */
+	public int getY(int i) {
+		return coords[2 * i + 1] + dy;
 	}
 
 	@Override
 	public void moveBy(int dx, int dy) {
-		for (Point p: points) {
-			p.translate(dx, dy);
-		}
+		this.dx += dx;
+		this.dy += dy;
+		bounds[0] += dx; bounds[1] += dy; bounds[2] += dx; bounds[3] += dy;
 	}
 
 	@Override
@@ -41,32 +79,44 @@ public class Polyline implements Shape {
 	
 	@Override
 	public boolean contains(int x, int y) {
-		for (int p = 0; p < points.size() - 1; p++) {
-			Point p1 = points.get(p);
-			Point p2 = points.get(p + 1);
-			if (Segment.pointToSegmentDistance(x, y, p1.x, p1.y, p2.x, p2.y) <= 20) return true;
+		if (x < bounds[0] || x > bounds[2] || y < bounds[1] || y > bounds[3]) return false;
+		// against the stored points, rather than moving every one of them
+		x -= dx;
+		y -= dy;
+		for (int i = 0; i < 2 * (size - 1); i += 2) {
+			if (Segment.pointToSegmentDistance(x, y, coords[i], coords[i + 1], coords[i + 2], coords[i + 3]) <= REACH) return true;
 		}
 		return false;
 	}
 
+	@Override
+	public int[] getBounds() {
+		return bounds;
+	}
+
 	@Override
 	public void draw(Graphics g) {
 		g.setColor(color);
-		for (int p = 0; p < points.size() - 1; p++) {
-			Point p1 = points.get(p);
-			Point p2 = points.get(p + 1);
-			g.drawLine(p1.x, p1.y, p2.x, p2.y);
+		for (int i = 0; i < 2 * (size - 1); i += 2) {
+			g.drawLine(coords[i] + dx, coords[i + 1] + dy, coords[i + 2] + dx, coords[i + 3] + dy);
 		}
 	}
 
 	@Override
-	public String toString() {
-		String pList = "";
-		// iterates over all points and builds out stream of x and y values of points
-		for (Point p: points) {
-			pList += p.x+" "+p.y+" ";
+	public void appendTo(StringBuilder out) {
+		out.append("polyline |");
+		// iterates over all points and writes out stream of x and y values of points
+		for (int i = 0; i < size; i++) {
+			out.append(getX(i)).append(' ').append(getY(i)).append(' ');
 		}
-		return "polyline |"+pList+color.getRGB()+"|";
+		out.append(color.getRGB()).append('|');
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder(16 + 10 * size);
+		appendTo(out);
+		return out.toString();
 	}
 
 	/**
@@ -80,7 +130,7 @@ public class Polyline implements Shape {
 				new Point(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])),
 				new Color(Integer.parseInt(parts[parts.length - 1]))); // references last in list for color info
 		for(int i = 2; i < parts.length - 1; i += 2) {
-			polyline.addPoint(new Point(Integer.parseInt(parts[i]),Integer.parseInt(parts[i+1])));
+			polyline.addPoint(Integer.parseInt(parts[i]), Integer.parseInt(parts[i+1]));
 		}
 		return polyline;
 	}
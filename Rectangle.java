@@ -10,6 +10,7 @@ import java.awt.Graphics;
  */
 public class Rectangle implements Shape {
 	private int x1, x2, y1, y2;		// top left and bottom right corners
+	private int[] bounds = new int[4];	// the corners again, as getBounds gives them
 	private Color color;
 
 	/**
@@ -19,6 +20,7 @@ public class Rectangle implements Shape {
 		this.x1 = x1; this.x2 = x1;
 		this.y1 = y1; this.y2 = y1;
 		this.color = color;
+		updateBounds();
 	}
 
 	/**
@@ -38,14 +40,33 @@ public class Rectangle implements Shape {
 		this.y1 = Math.min(y1, y2);
 		this.x2 = Math.max(x1, x2);
 		this.y2 = Math.max(y1, y2);
+		updateBounds();
 	}
 
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		updateBounds();
 	}
 
+	@Override
+	public int[] getBounds() {
+		return bounds;
+	}
+
+	private void updateBounds() {
+		bounds[0] = x1; bounds[1] = y1; bounds[2] = x2; bounds[3] = y2;
+	}
+
+	public int getX1() { return x1; }
+
+	public int getY1() { return y1; }
+
+	public int getX2() { return x2; }
+
+	public int getY2() { return y2; }
+
 	@Override
 	public Color getColor() {
 		return color;
@@ -0,0 +1,128 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how fast the editor's canvas can follow a drag on a big sketch, off screen:
+ * each frame moves one shape and paints the canvas again, either by drawing every shape,
+ * by drawing just the shapes in the damaged area (clip), or from cached layers (see SketchLayers),
+ * which are brought up to date when the drag starts. First, it times drawing the layers from scratch (as when a big
+ * sketch is opened) on one thread and on a pool of them.
+ * Usage: java RenderBenchmark [--shapes=n] [--frames=n] [--size=pixels] [--threads=n]
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class RenderBenchmark {
+	public static void main(String[] args) {
+		Options options = Options.parse(args);
+		int shapes = options.getInt("shapes", 100_000);
+		int frames = options.getInt("frames", 100);
+		int size = options.getInt("size", 800);
+		int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+
+		Sketch sketch = fill(shapes, size);
+		int dragged = shapes / 2;
+		BufferedImage canvas = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		for (int n : new int[] { 1, threads }) {
+			SketchLayers scratch = new SketchLayers(sketch, n > 1 ? pool : null);
+			double best = Double.MAX_VALUE;
+			for (int i = 0; i < 5; i++) {
+				Graphics2D g = canvas.createGraphics();
+				scratch.invalidateAll();
+				long start = System.nanoTime();
+				scratch.paint(g, size, size);
+				best = Math.min(best, (System.nanoTime() - start) / 1e6);
+				g.dispose();
+			}
+			System.out.printf("from scratch on %d thread%s: %.1f ms%n", n, n == 1 ? "" : "s", best);
+		}
+
+		SketchLayers layers = new SketchLayers(sketch, threads > 1 ? pool : null);
+
+		for (String mode : new String[] { "full", "clip", "layers" }) {
+			if (mode.equals("layers")) {
+				// what starting a drag costs: drawing the layers from scratch, then (after letting go) redrawing
+				// them for the newest shape, as when dragging what was just drawn, and for one in the middle
+				Graphics2D g = canvas.createGraphics();
+				for (int id : new int[] { SketchLayers.NONE, shapes, dragged }) {
+					layers.setActive(id);
+					long start = System.nanoTime();
+					layers.paint(g, size, size);
+					System.out.printf("layers drawn for %s in %.1f ms%n",
+							id == SketchLayers.NONE ? "no shape" : "shape " + id, (System.nanoTime() - start) / 1e6);
+					layers.setActive(SketchLayers.NONE);
+					layers.paint(g, size, size);
+				}
+				layers.setActive(dragged);
+				layers.paint(g, size, size);
+				g.dispose();
+			}
+			long start = 0;
+			for (int f = -frames / 5; f < frames; f++) { // the first fifth warms up
+				if (f == 0) start = System.nanoTime();
+				int[] before = sketch.shapeFromID(dragged).getBounds().clone();
+				int d = f % 40 < 20 ? 1 : -1;
+				sketch.moveShape(dragged, d, d);
+				int[] after = sketch.shapeFromID(dragged).getBounds();
+				int left = Math.min(before[0], after[0]) - 1, top = Math.min(before[1], after[1]) - 1;
+				int right = Math.max(before[2], after[2]) + 1, bottom = Math.max(before[3], after[3]) + 1;
+
+				Graphics2D g = canvas.createGraphics();
+				switch (mode) {
+					case "full" -> {
+						g.setColor(Color.white);
+						g.fillRect(0, 0, size, size);
+						sketch.forEach((id, shape) -> shape.draw(g));
+					}
+					case "clip" -> {
+						g.setClip(left, top, right - left + 1, bottom - top + 1);
+						g.setColor(Color.white);
+						g.fillRect(left, top, right - left + 1, bottom - top + 1);
+						sketch.forEach((id, shape) -> {
+							if (shape.intersects(left, top, right, bottom)) shape.draw(g);
+						});
+					}
+					default -> {
+						g.setClip(left, top, right - left + 1, bottom - top + 1);
+						g.setColor(Color.white);
+						g.fillRect(left, top, right - left + 1, bottom - top + 1);
+						layers.paint(g, size, size);
+					}
+				}
+				g.dispose();
+			}
+			double ms = (System.nanoTime() - start) / 1e6 / frames;
+			System.out.printf("%-6s %,d shapes: %.2f ms/frame (%.0f fps)%n", mode, sketch.size(), ms, 1000 / ms);
+		}
+	}
+
+	/**
+	 * A sketch of small shapes of every kind, scattered over the canvas
+	 */
+	static Sketch fill(int shapes, int size) {
+		Sketch sketch = new Sketch();
+		Random random = new Random(1);
+		Color[] colors = { Color.black, Color.red, Color.blue, Color.green };
+		for (int i = 0; i < shapes; i++) {
+			int x = random.nextInt(size - 40), y = random.nextInt(size - 40);
+			Color color = colors[i % colors.length];
+			Shape shape = switch (i % 4) {
+				case 0 -> new Rectangle(x, y, x + 30, y + 20, color);
+				case 1 -> new Ellipse(x, y, x + 20, y + 30, color);
+				case 2 -> new Segment(x, y, x + 25, y + 25, color);
+				default -> {
+					Polyline polyline = new Polyline(new Point(x, y), color);
+					for (int p = 1; p < 10; p++) polyline.addPoint(x + 3 * p, y + (p & 3) * 5);
+					yield polyline;
+				}
+			};
+			sketch.addShapeFromServer(shape);
+		}
+		return sketch;
+	}
+}
@@ -0,0 +1,66 @@
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Measures how long a restart takes: fills a journaled sequencer with shapes and a long drag of one of them,
+ * checkpoints it while more operations keep coming, then times rebuilding the sketch from the checkpoint and
+ * the journal after it.
+ * Usage: java RestartBenchmark [--shapes=n] [--moves=n] [--dir=path]
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class RestartBenchmark {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Options options = Options.parse(args);
+		int shapes = options.getInt("shapes", 1_000_000);
+		int moves = options.getInt("moves", 100_000);
+		File root = new File(options.getString("dir", System.getProperty("java.io.tmpdir")));
+		File dir = Files.createTempDirectory(root.toPath(), "restart-bench").toFile();
+
+		Journal journal = new Journal(dir, Journal.Sync.INTERVAL, 100, Journal.DEFAULT_SEGMENT_BYTES);
+		Sketch sketch = new Sketch(true);
+		Sequencer sequencer = new Sequencer(sketch, 1);
+		sequencer.setJournal(journal, journal.replay(sketch, 0));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < shapes; i++) {
+			int x = i % 1000, y = i / 1000 % 1000;
+			sequencer.submit(Command.add(0, new Rectangle(x, y, x + 20, y + 10, Color.blue)));
+		}
+		for (int i = 0; i < moves; i++) sequencer.submit(Command.move(1, 1, -1));
+		waitFor(sequencer, shapes + moves);
+		System.out.printf("applied %,d operations in %d ms%n", shapes + moves, (System.nanoTime() - start) / 1_000_000);
+
+		// checkpoint while the drag goes on, then drag some more so there's a tail to replay
+		start = System.nanoTime();
+		sequencer.checkpoint();
+		for (int i = 0; i < moves; i++) sequencer.submit(Command.move(2, -1, 1));
+		waitFor(sequencer, shapes + 2L * moves);
+		while (list(dir, ".ckpt") == 0) Thread.sleep(10);
+		System.out.printf("checkpointed (with %,d operations alongside) in %d ms%n", moves, (System.nanoTime() - start) / 1_000_000);
+		journal.force();
+
+		start = System.nanoTime();
+		Sketch restored = new Sketch(true);
+		long from = Checkpoint.load(dir, restored);
+		long seq = new Journal(dir, Journal.Sync.INTERVAL, 100, Journal.DEFAULT_SEGMENT_BYTES).replay(restored, from);
+		System.out.printf("restart from checkpoint: %,d shapes, checkpoint at %,d + %,d operations replayed, in %d ms%n",
+				restored.size(), from, seq - from, (System.nanoTime() - start) / 1_000_000);
+		System.out.println("restored sketch matches: " + restored.shapeFromID(2).toString().equals(sketch.shapeFromID(2).toString())
+				+ ", journal segments left: " + list(dir, ".journal"));
+
+		for (File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+
+	private static void waitFor(Sequencer sequencer, long seq) throws InterruptedException {
+		while (sequencer.getSeq() < seq) Thread.sleep(5);
+	}
+
+	private static int list(File dir, String suffix) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(suffix));
+		return files == null ? 0 : files.length;
+	}
+}
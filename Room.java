@@ -0,0 +1,286 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One document on the SketchServer: its sketch, the sequencer that applies commands to it, the clients connected to it,
+ * and (with a journal) where it's saved. The server's rooms share its worker and fan-out threads.
+ * Its sketch is columnar (see Sketch), to keep big ones light on the heap and the garbage collector.
+ * A room nobody is in can be put away on disk (hibernated), dropping its sketch and sequencer from the heap;
+ * the next client to join brings it back.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class Room {
+	private String name;
+	private Executor workers;										// threads shared with the other rooms
+	private Executor[] fanOut;
+	private ScheduledExecutorService timer;
+	private volatile Sketch sketch;									// the state of this room's world (null while hibernated)
+	private volatile Sequencer sequencer;							// applies commands to it and passes them on (ditto)
+	private List<ServerConnection> comms = new CopyOnWriteArrayList<>();	// clients in the room
+	private int tickMillis = 0;										// for the sequencer: tick length, if batching
+	private int logCapacity = 10000;								// ... operations kept for resuming clients
+	private File journalDir = null;									// where it's journaled, if anywhere
+	private Journal.Sync journalSync;
+	private int journalSyncMillis;
+	private Journal journal = null;									// the open journal (null while hibernated)
+	private File savedIn = null;									// where it's hibernated, if not journaled
+	private long restSeq = 0;										// seq when it was hibernated
+	private volatile long idleSince = System.nanoTime();			// when the last client left
+	private long joins = 0;											// clients that have joined, ever
+	private long statsSeq = 0;										// seq when stats were last printed
+
+	/**
+	 * An empty room, whose sequencer runs on the server's shared threads
+	 */
+	public Room(String name, Executor workers, Executor[] fanOut, ScheduledExecutorService timer) {
+		this.name = name;
+		this.workers = workers;
+		this.fanOut = fanOut;
+		this.timer = timer;
+		load();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * The sketch is owned by the sequencer; anyone else reading it may see it mid-change
+	 * @return the sketch, or null if the room is hibernated
+	 */
+	public Sketch getSketch() {
+		return sketch;
+	}
+
+	/**
+	 * Sends operations out in batches, one per tick (see Sequencer.setTickMillis)
+	 */
+	public synchronized void setTickMillis(int millis) {
+		tickMillis = millis;
+		if (sequencer != null) sequencer.setTickMillis(millis);
+	}
+
+	/**
+	 * Sets how many recent operations are kept for clients resuming after a lost connection
+	 */
+	public synchronized void setLogCapacity(int capacity) {
+		logCapacity = capacity;
+		if (sequencer != null) sequencer.setLogCapacity(capacity);
+	}
+
+	/**
+	 * Rebuilds the sketch from the latest checkpoint and the journal after it in dir,
+	 * and appends every operation to the journal from now on (before any clients join)
+	 */
+	public synchronized void openJournal(File dir, Journal.Sync sync, int syncMillis) throws IOException {
+		journalDir = dir;
+		journalSync = sync;
+		journalSyncMillis = syncMillis;
+		openJournal();
+	}
+
+	private void openJournal() throws IOException {
+		long start = System.nanoTime();
+		journal = new Journal(journalDir, journalSync, journalSyncMillis, Journal.DEFAULT_SEGMENT_BYTES);
+		long from = Checkpoint.load(journalDir, sketch);
+		long seq = journal.replay(sketch, from);
+		if (seq > 0) {
+			System.out.printf("room %s: restored %d shapes (checkpoint at %d, then %d operations from the journal) in %d ms%n",
+					name, sketch.size(), from, seq - from, (System.nanoTime() - start) / 1_000_000);
+		}
+		sequencer.setJournal(journal, seq);
+	}
+
+	/**
+	 * Checkpoints the sketch (if journaled and changed), in the background
+	 */
+	public synchronized void checkpoint() {
+		if (sequencer != null) sequencer.checkpoint();
+	}
+
+	/**
+	 * @return whether the room is in memory (not hibernated)
+	 */
+	public boolean isLoaded() {
+		return sequencer != null;
+	}
+
+	/**
+	 * @return roughly how much heap the room takes up (0 while hibernated)
+	 */
+	public long getFootprint() {
+		Sequencer s = sequencer;
+		return s == null ? 0 : s.getFootprint();
+	}
+
+	/**
+	 * @return when (System.nanoTime) the room last had a client in it
+	 */
+	public long getIdleSince() {
+		return idleSince;
+	}
+
+	/**
+	 * Puts the room away, if nobody is in it: waits for the sequencer to finish what it was given,
+	 * writes the sketch as a checkpoint (to the journal's directory, or if not journaled, to dir), and drops it
+	 * @return whether it was hibernated (not if a client is in it, or a checkpoint is still being written)
+	 */
+	public synchronized boolean hibernate(File dir) throws IOException {
+		if (sequencer == null || !comms.isEmpty()) return false;
+		long start = System.nanoTime();
+		long seq = sequencer.quiesce();
+		if (seq < 0) return false;
+
+		Checkpoint.save(journal != null ? journalDir : dir, seq, sketch);
+		if (journal != null) {
+			journal.truncate(seq);
+			journal.close();
+			journal = null;
+		}
+		else {
+			savedIn = dir;
+		}
+		System.out.printf("room %s: hibernated %d shapes in %d ms%n",
+				name, sketch.size(), (System.nanoTime() - start) / 1_000_000);
+		restSeq = seq;
+		sketch = null;
+		sequencer = null;
+		return true;
+	}
+
+	/**
+	 * Starts a new, empty sketch and sequencer
+	 */
+	private void load() {
+		sketch = new Sketch(true);
+		sequencer = new Sequencer(sketch, workers, fanOut, timer);
+		sequencer.setTickMillis(tickMillis);
+		sequencer.setLogCapacity(logCapacity);
+	}
+
+	/**
+	 * Brings a hibernated room back, from its journal's directory (checkpoint and journal) or where it was saved
+	 */
+	private void wake() throws IOException {
+		load();
+		if (journalDir != null) {
+			openJournal();
+			return;
+		}
+		long start = System.nanoTime();
+		Checkpoint.load(savedIn, sketch);
+		sequencer.restore(restSeq);
+		// just its own files: the directory only goes too if that leaves it empty
+		File[] files = savedIn.listFiles((d, file) -> file.startsWith("checkpoint-"));
+		if (files != null) for (File f : files) f.delete();
+		savedIn.delete();
+		savedIn = null;
+		System.out.printf("room %s: woke with %d shapes in %d ms%n",
+				name, sketch.size(), (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * Adds a client that opened with the given HELLO (or null if it didn't say one), bringing the room back if hibernated;
+	 * the sequencer tells it the current state of the world and then passes on every operation after it.
+	 * A client resuming from this run of the server (epoch) gets just the operations it missed, if they're still in the log;
+	 * one that says it only looks at part of the sketch gets just that part.
+	 */
+	public synchronized void join(ServerConnection comm, String hello, long epoch) {
+		if (sequencer == null) {
+			try {
+				wake();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException("can't bring back room " + name, e);
+			}
+		}
+		comms.add(comm);
+		joins++;
+		int[] view = hello == null ? null : WireProtocol.view(hello);
+		if (view != null) {
+			sequencer.join(comm, view); // it only has part of the sketch, so it starts afresh rather than resuming
+		}
+		else if (hello != null && WireProtocol.isResume(hello)) {
+			// a seq from another run means nothing here, so that client gets everything
+			long lastSeq = WireProtocol.epoch(hello) == epoch ? WireProtocol.resumeSeq(hello) : -1;
+			sequencer.join(comm, true, lastSeq);
+		}
+		else {
+			sequencer.join(comm);
+		}
+	}
+
+	public synchronized void leave(ServerConnection comm) {
+		if (!comms.remove(comm)) return;
+		sequencer.leave(comm);
+		if (comms.isEmpty()) idleSince = System.nanoTime();
+	}
+
+	/**
+	 * @return how many clients are in the room
+	 */
+	public int getNumConnections() {
+		return comms.size();
+	}
+
+	/**
+	 * Method used to resolve a text command fed to server from a client editor
+	 * @param from the client it came from
+	 * @param command command to be parsed and re-fed to client editors
+	 */
+	public void resolveCommand(ServerConnection from, String command) {
+		Command c = Command.parse(command);
+		if (c != null) resolveCommand(from, c);
+	}
+
+	/**
+	 * Method used to resolve a command fed to server from a client editor (in either protocol):
+	 * hands it to the sequencer, which applies it and returns the relevant command to all client editors in the room
+	 * (including the one in which the change was made); only clients in the room send commands, so it isn't hibernated
+	 * @param from the client it came from (whose stroke a BEGIN, APPEND or END is)
+	 * @param c command to be applied and re-fed to client editors (copied, so the caller may reuse it)
+	 */
+	public void resolveCommand(ServerConnection from, Command c) {
+		Command copy = c.copy();
+		copy.from = from;
+		sequencer.submit(copy);
+	}
+
+	private synchronized long getSeq() {
+		return sequencer == null ? restSeq : sequencer.getSeq();
+	}
+
+	/**
+	 * @return how many operations have been applied since the last call (for stats)
+	 */
+	public synchronized long takeOps() {
+		long seq = getSeq();
+		long ops = seq - statsSeq;
+		statsSeq = seq;
+		return ops;
+	}
+
+	/**
+	 * @return one line of stats: clients, operations, how far behind the clients are
+	 */
+	public synchronized String getStats(long ops) {
+		int depth = 0, highWater = 0;
+		long dropped = 0;
+		for (ServerConnection comm : comms) {
+			OutboundQueue q = comm.getOutbound();
+			depth = Math.max(depth, q.getDepth());
+			highWater = Math.max(highWater, q.getHighWaterMark());
+			dropped += q.getDropped();
+		}
+		return String.format("room %s%s: clients: %d (joins: %d), operations: %d (+%d), ~%d KB, rejected: %d, "
+						+ "max queue depth: %d, max high-water mark: %d, dropped: %d",
+				name, sequencer == null ? " (hibernated)" : "", comms.size(), joins, getSeq(), ops, getFootprint() / 1024,
+				sequencer == null ? 0 : sequencer.getRejected(), depth, highWater, dropped);
+	}
+}
@@ -8,6 +8,7 @@ import java.awt.Graphics;
  */
 public class Segment implements Shape {
 	private int x1, y1, x2, y2;		// two endpoints
+	private int[] bounds = new int[4];	// around them, as far as contains reaches
 	private Color color;
 
 	/**
@@ -17,6 +18,7 @@ public class Segment implements Shape {
 		this.x1 = x1; this.x2 = x1;
 		this.y1 = y1; this.y2 = y1;
 		this.color = color;
+		updateBounds();
 	}
 
 	/**
@@ -26,6 +28,7 @@ public class Segment implements Shape {
 		this.x1 = x1; this.y1 = y1;
 		this.x2 = x2; this.y2 = y2;
 		this.color = color;
+		updateBounds();
 	}
 
 	/**
@@ -33,6 +36,7 @@ public class Segment implements Shape {
 	 */
 	public void setStart(int x1, int y1) {
 		this.x1 = x1; this.y1 = y1;
+		updateBounds();
 	}
 	
 	/**
@@ -40,14 +44,24 @@ public class Segment implements Shape {
 	 */
 	public void setEnd(int x2, int y2) {
 		this.x2 = x2; this.y2 = y2;
+		updateBounds();
 	}
 	
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		bounds[0] += dx; bounds[1] += dy; bounds[2] += dx; bounds[3] += dy;
 	}
 
+	public int getX1() { return x1; }
+
+	public int getY1() { return y1; }
+
+	public int getX2() { return x2; }
+
+	public int getY2() { return y2; }
+
 	@Override
 	public Color getColor() {
 		return color;
@@ -60,9 +74,21 @@ public class Segment implements Shape {
 	
 	@Override
 	public boolean contains(int x, int y) {
+		if (x < bounds[0] || x > bounds[2] || y < bounds[1] || y > bounds[3]) return false;
 		return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
 	}
 
+	@Override
+	public int[] getBounds() {
+		return bounds;
+	}
+
+	private void updateBounds() {
+		// as far as contains() reaches past the ends
+		bounds[0] = Math.min(x1, x2) - 3; bounds[1] = Math.min(y1, y2) - 3;
+		bounds[2] = Math.max(x1, x2) + 3; bounds[3] = Math.max(y1, y2) + 3;
+	}
+
 	/**
 	 * Helper method to compute the distance between a point (x,y) and a segment (x1,y1)-(x2,y2)
 	 * http://stackoverflow.com/questions/849211/shortest-distance-between-a-point-and-a-line-segment
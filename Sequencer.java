@@ -0,0 +1,740 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The single writer for one room's sketch.
+ * Reader threads publish commands into a lock-free queue; the sequencer applies them to the sketch
+ * in arrival order, numbers each resulting operation, and hands batches of them to the fan-out threads,
+ * each of which owns a share of the connections and enqueues the batches for them, in parallel with the others.
+ * Every client therefore sees the same total order, without a lock around the whole server.
+ * The sequencer has no thread of its own: whenever it has work, it is scheduled on a pool shared by all the rooms,
+ * and after each batch it goes to the back of the pool's queue, so a busy room can't hold up a quiet one;
+ * it is still only ever running on one thread at a time.
+ * The most recent operations are kept in a log, so that a client that lost its connection can get just what it missed,
+ * and every operation can go to a journal on disk as well, so that a restart can rebuild the sketch
+ * (from the latest checkpoint, which the sequencer streams out like a snapshot, without stopping).
+ * A client may instead only look at part of the sketch (a view, see Command's VIEW): it then gets just the shapes
+ * reaching into its view, widened by a margin so that a little panning finds shapes already there, and only the
+ * operations on those, worked out for it here and sent through its fan-out thread; a shape coming into view is
+ * ADDed, one leaving it is EVICTed.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class Sequencer {
+	private static final int MAX_BATCH = 256;		// most commands applied before fanning out what they produced
+	private static final long SNAPSHOT_POLL_NANOS = 1_000_000;	// how often to check on a client behind on its snapshot
+	private static final long BASE_BYTES = 4096, LOG_BYTES = 160;	// rough heap besides the sketch, and per logged operation
+	private static final double VIEW_MARGIN = 0.5;	// how much of a view's size it is widened by, on each side
+
+	private Sketch sketch;															// the state of the world (only touched here)
+	private ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<>();	// from the readers
+	private ConcurrentLinkedQueue<Runnable> control = new ConcurrentLinkedQueue<>();	// joins and leaves, in order
+	private Executor workers;									// where the sequencer runs
+	private ScheduledExecutorService timer;						// for coming back at the end of a tick, etc.
+	private AtomicBoolean scheduled = new AtomicBoolean(false);	// whether it is queued or running on a worker
+	private AtomicBoolean timerSet = new AtomicBoolean(false);	// whether the timer will wake it
+	private volatile long rejected = 0;							// commands for shapes already deleted
+	private volatile long seq = 0;								// number of the last operation applied
+	private volatile long footprint = 0;						// roughly how much heap the sketch and log take up
+	private ArrayDeque<Message> log = new ArrayDeque<>();		// the most recent operations, one per seq
+	private volatile int logCapacity = 10000;					// how many operations the log keeps
+	private Journal journal = null;								// where operations are made durable, if anywhere
+	private Checkpoint checkpoint = null;						// the checkpoint being written, if any
+	private SnapshotStream checkpointStream = null;				// ... and the sketch on its way to it
+	private long checkpointSeq = 0;								// seq of the latest checkpoint
+
+	private Partition[] partitions;										// fan-out threads and this room's connections
+	private int nextPartition;											// round-robin assignment of new connections
+	private IdentityHashMap<ServerConnection, Partition> partitionOf = new IdentityHashMap<>();
+	private ArrayList<Message> batch = new ArrayList<>();				// operations applied since the last fan-out
+	private ArrayList<SnapshotStream> snapshots = new ArrayList<>();	// snapshots still going out to new connections
+	private IdentityHashMap<ServerConnection, Integer> strokes = new IdentityHashMap<>();	// client -> its open stroke
+	private IdentityHashMap<ServerConnection, Viewer> viewers = new IdentityHashMap<>();	// clients looking at a part
+
+	private volatile int tickMillis = 0;							// if > 0, fan out once per tick instead
+	private long tickEnds;											// when the current tick is up
+	private ArrayList<Message> tick = new ArrayList<>();			// operations waiting for the end of the tick
+	private HashMap<Integer, Integer> tickLast = new HashMap<>();	// shape id -> index of its last operation in tick
+
+	/**
+	 * A sequencer with threads of its own (one to run on, and fanOutThreads to fan out)
+	 * @param sketch the sketch to apply commands to
+	 */
+	public Sequencer(Sketch sketch, int fanOutThreads) {
+		this(sketch, Executors.newSingleThreadExecutor(Threads.daemons("sketch-sequencer")),
+				fanOutExecutors(Math.max(1, fanOutThreads)),
+				Executors.newSingleThreadScheduledExecutor(Threads.daemons("sketch-timer")));
+	}
+
+	/**
+	 * A sequencer sharing its threads with others
+	 * @param sketch the sketch to apply commands to
+	 * @param workers where to run
+	 * @param fanOut single-threaded executors that enqueue operations for the connections
+	 * @param timer to come back when there's nothing to do until later
+	 */
+	public Sequencer(Sketch sketch, Executor workers, Executor[] fanOut, ScheduledExecutorService timer) {
+		this.sketch = sketch;
+		this.workers = workers;
+		this.timer = timer;
+		partitions = new Partition[fanOut.length];
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i] = new Partition(fanOut[i]);
+		}
+		nextPartition = ThreadLocalRandom.current().nextInt(partitions.length); // spread small rooms out
+	}
+
+	/**
+	 * @return n single-threaded executors, for fanning out (each must run its tasks in order)
+	 */
+	public static Executor[] fanOutExecutors(int n) {
+		Executor[] fanOut = new Executor[n];
+		for (int i = 0; i < n; i++) {
+			fanOut[i] = Executors.newSingleThreadExecutor(Threads.daemons("sketch-fanout-" + i));
+		}
+		return fanOut;
+	}
+
+	/**
+	 * Sends operations out in batches, one per tick, with a shape's MOVEs within a tick summed into one
+	 */
+	public void setTickMillis(int millis) {
+		tickMillis = millis;
+	}
+
+	/**
+	 * Sets how many recent operations are kept for clients resuming after a lost connection
+	 */
+	public void setLogCapacity(int capacity) {
+		logCapacity = capacity;
+	}
+
+	/**
+	 * Starts appending every operation to the journal, which the sketch has been rebuilt from up to seq
+	 * (before any commands come in)
+	 */
+	public void setJournal(Journal journal, long seq) {
+		control.add(() -> this.journal = journal);
+		restore(seq);
+	}
+
+	/**
+	 * Carries on numbering operations after seq, which the sketch has been rebuilt up to (before any commands come in)
+	 */
+	public void restore(long seq) {
+		control.add(() -> this.seq = seq);
+		wake();
+	}
+
+	/**
+	 * Waits until everything submitted so far has been applied and sent on (and journaled, if journaling);
+	 * with no connections left and nothing more submitted, the sketch and journal are then no longer touched here
+	 * @return the number of the last operation applied, or -1 if a checkpoint is still being written from the sketch
+	 */
+	public long quiesce() {
+		CompletableFuture<Long> done = new CompletableFuture<>();
+		control.add(() -> {
+			while (applyCommands()) {
+				if (journal != null) journal.commit();
+				flushBatch();
+			}
+			flushTick();
+			boolean checkpointing = checkpointStream != null || (checkpoint != null && !checkpoint.isDone());
+			done.complete(checkpointing ? -1 : seq);
+		});
+		wake();
+		return done.join();
+	}
+
+	/**
+	 * Queues a checkpoint of the sketch as it is now, written in the background (unless one is still being written,
+	 * or nothing has changed since the last)
+	 */
+	public void checkpoint() {
+		control.add(() -> {
+			if (journal == null || seq == checkpointSeq || (checkpoint != null && !checkpoint.isDone())) return;
+			flushTick();
+			checkpoint = new Checkpoint(journal.getDir(), seq, sketch.getNumID(), journal);
+			checkpointStream = new SnapshotStream(checkpoint, sketch, seq);
+			checkpointSeq = seq;
+		});
+		wake();
+	}
+
+	/**
+	 * @return the number of the last operation applied
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * @return roughly how much heap the sketch and the log take up, as of the last round of work
+	 */
+	public long getFootprint() {
+		return footprint;
+	}
+
+	/**
+	 * @return how many commands were for shapes already deleted
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Queues a command to be applied (called by any reader thread; c must not be reused afterwards)
+	 */
+	public void submit(Command c) {
+		commands.add(c);
+		wake();
+	}
+
+	/**
+	 * Queues a new connection to get the current state of the world (streamed in chunks)
+	 * and then every operation after it
+	 */
+	public void join(ServerConnection conn) {
+		join(conn, false, 0);
+	}
+
+	/**
+	 * Queues a connection to get every operation after it;
+	 * a resuming one first gets the operations after lastSeq, if the log still has them all
+	 * (if not, it gets a RESET and then the current state of the world, as if new)
+	 */
+	public void join(ServerConnection conn, boolean resuming, long lastSeq) {
+		control.add(() -> {
+			flushTick(); // the snapshot (or the log) already includes the tick's operations
+			if (resuming && canResume(lastSeq)) {
+				// everything up to seq has been handed to the fan-out threads, so the connection takes over from there
+				List<Message> missed = new ArrayList<>();
+				for (Message m : log) {
+					if (m.getSeq() > lastSeq) missed.add(m);
+				}
+				if (!missed.isEmpty()) conn.send(missed.size() == 1 ? missed.get(0) : Message.batch(missed));
+				assign(conn);
+				return;
+			}
+			if (resuming) conn.send(new Message(Command.reset()));
+			snapshots.add(new SnapshotStream(conn, sketch, seq));
+		});
+		wake();
+	}
+
+	/**
+	 * Queues a new connection that only looks at part of the sketch (a box, {left, top, right, bottom}): it gets
+	 * the shapes reaching into its view, and then just what happens to shapes in it (see Viewer)
+	 */
+	public void join(ServerConnection conn, int[] view) {
+		control.add(() -> {
+			flushTick();
+			Viewer v = new Viewer(conn, widen(view));
+			viewers.put(conn, v);
+			int[] ids = sketch.getIDsIn(v.region[0], v.region[1], v.region[2], v.region[3]);
+			for (int id : ids) v.known.set(id);
+			snapshots.add(new SnapshotStream(conn, seq, ids));
+		});
+		wake();
+	}
+
+	/**
+	 * @return whether the log has every operation after lastSeq
+	 */
+	private boolean canResume(long lastSeq) {
+		if (lastSeq < 0 || lastSeq > seq) return false;
+		return lastSeq == seq || (!log.isEmpty() && lastSeq >= log.peekFirst().getSeq() - 1);
+	}
+
+	/**
+	 * Hands a connection that's caught up to a fan-out thread, for every operation fanned out from now on
+	 */
+	private void assign(ServerConnection conn) {
+		Partition p = partitions[nextPartition];
+		nextPartition = (nextPartition + 1) % partitions.length;
+		partitionOf.put(conn, p);
+		p.size++;
+		Viewer v = viewers.get(conn);
+		if (v != null) {
+			// it gets its own messages, through the same thread; first, squaring what it has with its view
+			v.partition = p;
+			refresh(v);
+			flushViewer(v);
+			return;
+		}
+		p.execute(() -> p.conns.add(conn));
+	}
+
+	/**
+	 * Queues a connection to stop getting operations
+	 */
+	public void leave(ServerConnection conn) {
+		// a stroke cut off stays as far as it got, and is finished like any other (after what the client sent)
+		Command end = Command.end();
+		end.from = conn;
+		submit(end);
+		control.add(() -> {
+			viewers.remove(conn);
+			snapshots.removeIf(s -> s.getConnection() == conn);
+			Partition p = partitionOf.remove(conn);
+			if (p != null) {
+				p.size--;
+				p.execute(() -> p.conns.remove(conn));
+			}
+		});
+		wake();
+	}
+
+	/**
+	 * Makes sure the sequencer is queued to run (at most once at a time)
+	 */
+	private void wake() {
+		if (scheduled.compareAndSet(false, true)) workers.execute(this::drain);
+	}
+
+	/**
+	 * Does one round of work, then gets back in line if there's more, or sets the timer if there will be
+	 */
+	private void drain() {
+		boolean worked = false;
+		try {
+			worked = step();
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		scheduled.set(false);
+		if (worked || !commands.isEmpty() || !control.isEmpty()) {
+			wake();
+			return;
+		}
+
+		// nothing to do until the end of the tick, or a client takes its snapshot chunk
+		long wait = snapshots.isEmpty() && checkpointStream == null ? Long.MAX_VALUE : SNAPSHOT_POLL_NANOS;
+		if (!tick.isEmpty()) wait = Math.min(wait, Math.max(0, tickEnds - System.nanoTime()));
+		if (wait != Long.MAX_VALUE && timerSet.compareAndSet(false, true)) {
+			timer.schedule(() -> {
+				timerSet.set(false);
+				wake();
+			}, wait, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Runs the joins and leaves, applies up to a batch of commands and fans them out,
+	 * and moves the tick and the snapshots along
+	 * @return whether there was anything to do
+	 */
+	private boolean step() {
+		boolean worked = false;
+
+		Runnable r;
+		while ((r = control.poll()) != null) {
+			r.run();
+			worked = true;
+		}
+
+		worked |= applyCommands();
+		if (worked && journal != null) journal.commit();
+		flushBatch();
+		if (!tick.isEmpty() && System.nanoTime() - tickEnds >= 0) flushTick();
+		if (!snapshots.isEmpty()) worked |= streamSnapshots();
+		if (checkpointStream != null) worked |= streamCheckpoint();
+		if (worked) footprint = BASE_BYTES + sketch.getBytes() + log.size() * LOG_BYTES;
+		return worked;
+	}
+
+	/**
+	 * Applies up to a batch of commands, and logs, journals and publishes the operations they produce
+	 * @return whether there were any
+	 */
+	private boolean applyCommands() {
+		boolean applied = false;
+		Command c;
+		for (int n = 0; n < MAX_BATCH && (c = commands.poll()) != null; n++) {
+			Message m = apply(c);
+			if (m != null) {
+				log(m);
+				journal(m);
+				publish(m);
+				if (!viewers.isEmpty()) see(m);
+			}
+			applied = true;
+		}
+		return applied;
+	}
+
+	/**
+	 * Applies a command to the sketch
+	 * @return the operation to send to all client editors (including the one in which the change was made),
+	 * or null if the command no longer applies
+	 */
+	private Message apply(Command c) {
+		switch (c.getOp()) {
+			// if ADD, adds shape to overall server sketch and receives its ID for the command to client editors
+			case ADD -> {
+				int id = sketch.addShapeFromServer(c.getShape());
+				return new Message(Command.add(id, c.getShape()), ++seq);
+			}
+
+			// if MOVE, determines which shape to be moved from command using embedded ID, and applies the
+			// dx and dy distances to server sketch
+			case MOVE -> {
+				if (!sketch.hasShape(c.getID())) {
+					rejected++; // already deleted
+					return null;
+				}
+				beforeChange(c.getID());
+				sketch.moveShape(c.getID(), c.getDx(), c.getDy());
+			}
+
+			// if RECOLOR, determines shape from shape ID in sketch and sets color of shape to new color in server sketch
+			case RECOLOR -> {
+				if (!sketch.hasShape(c.getID())) {
+					rejected++; // already deleted
+					return null;
+				}
+				beforeChange(c.getID());
+				sketch.recolorShape(c.getID(), c.getColor());
+			}
+
+			// if DELETE, removes shape from server sketch using ID
+			case DELETE -> {
+				beforeChange(c.getID());
+				sketch.removeShape(c.getID());
+			}
+
+			// if BEGIN, adds the stroke like an ADD, and keeps its ID as the client's open stroke, for its APPENDs
+			case BEGIN -> {
+				int id = sketch.addShapeFromServer(c.getShape());
+				strokes.put(c.getFrom(), id);
+				return new Message(Command.add(id, c.getShape()), ++seq);
+			}
+
+			// if APPEND, adds the points to the client's open stroke, and passes them on with the stroke's ID
+			case APPEND -> {
+				Integer id = strokes.get(c.getFrom());
+				if (id == null || !sketch.hasShape(id)) {
+					rejected++; // no stroke open, or deleted while being drawn
+					return null;
+				}
+				beforeChange(id);
+				sketch.appendPoints(id, c.getPoints());
+				return new Message(Command.append(id, c.getPoints()), ++seq);
+			}
+
+			// if END, the client's stroke is finished: it goes out again whole, as an ADD replacing the one from BEGIN,
+			// for the clients that can't take APPENDs (older ones, which drop them), so they don't keep just its first point
+			case END -> {
+				Integer id = strokes.remove(c.getFrom());
+				if (id == null || !sketch.hasShape(id)) return null;
+				return new Message(Command.add(id, sketch.shapeFromID(id)), ++seq);
+			}
+
+			// if VIEW, the client now only gets what happens in that part of the sketch
+			case VIEW -> {
+				setView(c.getFrom(), c.getBox());
+				return null;
+			}
+
+			// SYNC, RESET and EVICT only go from the server to clients
+			case SYNC, RESET, EVICT -> {
+				return null;
+			}
+		}
+		return new Message(c, ++seq);
+	}
+
+	/**
+	 * Lets the snapshots still going out save a shape that is about to change
+	 */
+	private void beforeChange(int id) {
+		for (SnapshotStream s : snapshots) s.beforeChange(id, sketch);
+		if (checkpointStream != null) checkpointStream.beforeChange(id, sketch);
+	}
+
+	/**
+	 * Sends the next chunk of each snapshot whose client has room for it;
+	 * a finished snapshot's operations since the join follow it, and its connection then joins a fan-out thread
+	 * @return whether any chunk went out
+	 */
+	private boolean streamSnapshots() {
+		boolean sent = false;
+		for (Iterator<SnapshotStream> it = snapshots.iterator(); it.hasNext(); ) {
+			SnapshotStream s = it.next();
+			if (!s.isDone() && s.isReady()) {
+				s.sendChunk(sketch);
+				sent = true;
+			}
+			if (s.isDone()) {
+				s.finish();
+				it.remove();
+				// everything fanned out before this was held in the snapshot, everything after reaches the connection
+				assign(s.getConnection());
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Keeps an operation for resuming clients, dropping the oldest once the log is full
+	 */
+	private void log(Message m) {
+		log.addLast(m);
+		while (log.size() > logCapacity) log.pollFirst();
+	}
+
+	/**
+	 * Sends the checkpoint writer its next chunk, if it has room for it
+	 * @return whether a chunk went out
+	 */
+	private boolean streamCheckpoint() {
+		boolean sent = false;
+		if (!checkpointStream.isDone() && checkpointStream.isReady()) {
+			checkpointStream.sendChunk(sketch);
+			sent = true;
+		}
+		if (checkpointStream.isDone()) {
+			checkpoint.finish();
+			checkpointStream = null;
+		}
+		return sent;
+	}
+
+	/**
+	 * Appends an operation to the journal; if that fails, carries on without one
+	 */
+	private void journal(Message m) {
+		if (journal == null) return;
+		try {
+			journal.append(m);
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println("journal failed; operations are no longer being saved");
+			e.printStackTrace();
+			journal = null;
+		}
+	}
+
+	/**
+	 * Adds an operation to what goes out next: the current batch, or with ticks on, the current tick
+	 */
+	private void publish(Message m) {
+		if (tickMillis <= 0) {
+			batch.add(m);
+			return;
+		}
+
+		if (tick.isEmpty()) tickEnds = System.nanoTime() + tickMillis * 1_000_000L;
+		// a MOVE folds into the shape's previous operation in the tick if that was a MOVE too;
+		// MOVEs of different shapes don't affect each other, so the rest stays in order
+		int id = m.getShapeID();
+		Integer last = tickLast.get(id);
+		Message merged = last == null ? null : Message.mergeMoves(tick.get(last), m);
+		if (merged != null) {
+			tick.set(last, merged);
+		}
+		else {
+			tickLast.put(id, tick.size());
+			tick.add(m);
+		}
+	}
+
+	private void flushBatch() {
+		for (Viewer v : viewers.values()) flushViewer(v);
+		if (batch.isEmpty()) return;
+		fanOut(batch.size() == 1 ? batch.get(0) : Message.batch(batch));
+		batch.clear();
+	}
+
+	private void flushTick() {
+		if (tick.isEmpty()) return;
+		fanOut(tick.size() == 1 ? tick.get(0) : Message.batch(tick));
+		tick.clear();
+		tickLast.clear();
+	}
+
+	/**
+	 * Hands a message to every fan-out thread to enqueue for its connections (a single write per connection),
+	 * and holds it for the connections still getting their snapshot
+	 */
+	private void fanOut(Message m) {
+		for (SnapshotStream s : snapshots) s.addLive(m);
+		for (Partition p : partitions) {
+			if (p.size == 0) continue;
+			p.execute(() -> {
+				for (ServerConnection conn : p.conns) conn.send(m);
+			});
+		}
+	}
+
+	/**
+	 * Changes the part of the sketch a client is looking at; a client that has been getting everything
+	 * starts getting just what is in view
+	 */
+	private void setView(ServerConnection conn, int[] view) {
+		Viewer v = viewers.get(conn);
+		if (v == null) {
+			// whatever it has been sent so far (or will be, if it's still on its snapshot) is every shape there is
+			v = new Viewer(conn, widen(view));
+			viewers.put(conn, v);
+			for (int id : sketch.getIDs()) v.known.set(id);
+			Partition p = partitionOf.get(conn);
+			if (p == null) return; // squared with its view once it's done with its snapshot
+			if (journal != null) journal.commit(); // the operations it would have got along with the others go first
+			flushBatch();
+			flushTick();
+			v.partition = p;
+			p.execute(() -> p.conns.remove(conn));
+		}
+		v.region = widen(view);
+		if (v.partition != null) refresh(v);
+	}
+
+	/**
+	 * @return a view (a box) widened by the margin on every side
+	 */
+	private static int[] widen(int[] view) {
+		int left = Math.min(view[0], view[2]), top = Math.min(view[1], view[3]);
+		int right = Math.max(view[0], view[2]), bottom = Math.max(view[1], view[3]);
+		int mx = (int) ((right - left) * VIEW_MARGIN), my = (int) ((bottom - top) * VIEW_MARGIN);
+		return new int[] { left - mx, top - my, right + mx, bottom + my };
+	}
+
+	private static boolean overlaps(int[] b, int[] region) {
+		return b[0] <= region[2] && b[2] >= region[0] && b[1] <= region[3] && b[3] >= region[1];
+	}
+
+	/**
+	 * Squares what a client looking at part of the sketch has with what is in its view now:
+	 * EVICTs the shapes it has that are out of view, and ADDs those in view that it doesn't have
+	 */
+	private void refresh(Viewer v) {
+		for (int id = v.known.nextSetBit(0); id >= 0; id = v.known.nextSetBit(id + 1)) {
+			int[] b = sketch.boundsOf(id);
+			if (b == null) {
+				v.known.clear(id); // deleted, and it has been sent the DELETE
+			}
+			else if (!overlaps(b, v.region)) {
+				v.known.clear(id);
+				v.out.add(new Message(Command.evict(id), seq));
+			}
+		}
+		for (int id : sketch.getIDsIn(v.region[0], v.region[1], v.region[2], v.region[3])) {
+			if (v.known.get(id)) continue;
+			v.known.set(id);
+			v.out.add(new Message(Command.add(id, sketch.shapeFromID(id)), seq));
+		}
+	}
+
+	/**
+	 * Works out what each client looking at part of the sketch gets of an operation just applied: the operation itself
+	 * if it has the shape, an ADD if the shape has just come into view, or an EVICT if it has just left
+	 */
+	private void see(Message m) {
+		int id = m.getShapeID();
+		int[] b = sketch.boundsOf(id); // null once deleted
+		Message add = null, evict = null;
+		for (Viewer v : viewers.values()) {
+			boolean has = v.known.get(id), inView = b != null && overlaps(b, v.region);
+			if (v.partition == null) {
+				// still on its snapshot, which holds every operation after it, so it gets the shapes ADDed meanwhile
+				if (m.getOp() == Command.Op.ADD) v.known.set(id);
+				else if (m.getOp() == Command.Op.DELETE) v.known.clear(id);
+				continue;
+			}
+			switch (m.getOp()) {
+				case ADD -> {
+					if (!inView) continue;
+					v.known.set(id);
+					v.out.add(m);
+				}
+				case MOVE, APPEND -> {
+					if (has && inView) {
+						v.out.add(m);
+					}
+					else if (has) {
+						if (evict == null) evict = new Message(Command.evict(id), m.getSeq());
+						v.known.clear(id);
+						v.out.add(evict);
+					}
+					else if (inView) {
+						if (add == null) add = new Message(Command.add(id, sketch.shapeFromID(id)), m.getSeq());
+						v.known.set(id);
+						v.out.add(add);
+					}
+				}
+				case RECOLOR -> {
+					if (has) v.out.add(m);
+				}
+				case DELETE -> {
+					if (!has) continue;
+					v.known.clear(id);
+					v.out.add(m);
+				}
+				default -> { }
+			}
+		}
+	}
+
+	/**
+	 * Hands what a client looking at part of the sketch gets of the current batch to its fan-out thread
+	 */
+	private void flushViewer(Viewer v) {
+		if (v.out.isEmpty() || v.partition == null) return;
+		Message m = v.out.size() == 1 ? v.out.get(0) : Message.batch(v.out);
+		v.out.clear();
+		ServerConnection conn = v.conn;
+		v.partition.execute(() -> conn.send(m));
+	}
+
+	///////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A client only looking at part of the sketch, and the shapes it has (only touched by the sequencer)
+	 */
+	private static class Viewer {
+		private ServerConnection conn;
+		private int[] region;					// its view, widened by the margin: {left, top, right, bottom}
+		private BitSet known = new BitSet();	// IDs of the shapes it has been sent (and not since told to let go)
+		private Partition partition = null;		// the fan-out thread its messages go through (null while on its snapshot)
+		private ArrayList<Message> out = new ArrayList<>();	// what it gets of the current batch
+
+		public Viewer(ServerConnection conn, int[] region) {
+			this.conn = conn;
+			this.region = region;
+		}
+	}
+
+	/**
+	 * One fan-out thread and the room's connections it enqueues for
+	 * (the list is only touched on the fan-out thread, the count only by the sequencer)
+	 */
+	private static class Partition {
+		private Executor exec;
+		private ArrayList<ServerConnection> conns = new ArrayList<>();
+		private int size = 0;
+
+		public Partition(Executor exec) {
+			this.exec = exec;
+		}
+
+		public void execute(Runnable task) {
+			exec.execute(task);
+		}
+	}
+}
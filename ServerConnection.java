@@ -0,0 +1,17 @@
+/**
+ * One client connected to the SketchServer, however the server engine talks to it
+ * (a thread per connection in SketchServerCommunicator, or an event loop in SketchServerNio)
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public interface ServerConnection {
+	/**
+	 * Sends a message (one or more operations) to the client, in whichever protocol it speaks
+	 */
+	public void send(Message msg);
+
+	/**
+	 * @return the queue of messages waiting to be written to this client
+	 */
+	public OutboundQueue getOutbound();
+}
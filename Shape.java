@@ -19,6 +19,21 @@ public interface Shape {
 	 */
 	public boolean contains(int x, int y);
 
+	/**
+	 * @return The smallest box around every point the shape contains or draws: {left, top, right, bottom}, inclusive
+	 * (kept up to date by the shape as it changes, so not to be modified, and copied if it's to be kept)
+	 */
+	public int[] getBounds();
+
+	/**
+	 * Whether the shape's bounds overlap the box from (left, top) to (right, bottom), inclusive;
+	 * if not, there's no need to draw it there or test points there
+	 */
+	public default boolean intersects(int left, int top, int right, int bottom) {
+		int[] b = getBounds();
+		return b[0] <= right && b[2] >= left && b[1] <= bottom && b[3] >= top;
+	}
+
 	/**
 	 * @return The shape's color
 	 */
@@ -33,4 +48,11 @@ public interface Shape {
 	 * Draws the shape
 	 */
 	public void draw(Graphics g);
+
+	/**
+	 * Writes the shape as it appears in a text command (its toString) into out
+	 */
+	public default void appendTo(StringBuilder out) {
+		out.append(this);
+	}
 }
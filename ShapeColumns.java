@@ -0,0 +1,233 @@
+import java.awt.Color;
+import java.awt.Point;
+import java.util.Arrays;
+
+/**
+ * The shapes of a large sketch kept as columns of primitives, one entry per slot, rather than as an object per shape
+ * (with its own Color, and for a polyline, its own array of joints): each slot has a kind, corners, a color,
+ * and for a polyline, a run of the points array that all the polylines share (with room to grow, for a stroke
+ * still being drawn: one that outgrows its run moves to the end, into twice the room).
+ * A million shapes are then a few dozen arrays, which the garbage collector doesn't have to trace through.
+ * Shapes are built from the columns when asked for (and are copies: changes go through moveBy and setColor here).
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class ShapeColumns {
+	private static final byte NONE = 0, ELLIPSE = 1, RECTANGLE = 2, SEGMENT = 3, POLYLINE = 4;
+
+	private byte[] kind;					// slot -> which kind of shape (NONE: empty)
+	private int[] x1, y1, x2, y2;			// corners, or a segment's endpoints
+	private int[] rgb;						// color
+	private int[] pointStart, pointCount;	// a polyline's run in points
+	private int[] pointRoom;				// ... and how many points the run has room for
+	private int[] points = new int[64];		// polylines' joints, x and y interleaved
+	private int pointsUsed = 0;				// end of the runs in points
+	private int pointsLive = 0;				// how much of that is runs of polylines still in the sketch
+
+	public ShapeColumns(int capacity) {
+		kind = new byte[capacity];
+		x1 = new int[capacity]; y1 = new int[capacity];
+		x2 = new int[capacity]; y2 = new int[capacity];
+		rgb = new int[capacity];
+		pointStart = new int[capacity]; pointCount = new int[capacity]; pointRoom = new int[capacity];
+	}
+
+	/**
+	 * Makes room for slots up to capacity
+	 */
+	public void ensure(int capacity) {
+		if (capacity <= kind.length) return;
+		int n = Math.max(capacity, kind.length * 2);
+		kind = Arrays.copyOf(kind, n);
+		x1 = Arrays.copyOf(x1, n); y1 = Arrays.copyOf(y1, n);
+		x2 = Arrays.copyOf(x2, n); y2 = Arrays.copyOf(y2, n);
+		rgb = Arrays.copyOf(rgb, n);
+		pointStart = Arrays.copyOf(pointStart, n); pointCount = Arrays.copyOf(pointCount, n);
+		pointRoom = Arrays.copyOf(pointRoom, n);
+	}
+
+	/**
+	 * Copies a shape into a slot (replacing whatever was there)
+	 */
+	public void set(int slot, Shape shape) {
+		clear(slot);
+		rgb[slot] = shape.getColor().getRGB();
+		if (shape instanceof Polyline polyline) {
+			int n = polyline.size();
+			kind[slot] = POLYLINE;
+			pointCount[slot] = 0;
+			newRun(slot, n);
+			for (int i = 0; i < n; i++) {
+				points[pointStart[slot] + 2 * i] = polyline.getX(i);
+				points[pointStart[slot] + 2 * i + 1] = polyline.getY(i);
+			}
+			pointCount[slot] = n;
+		}
+		else if (shape instanceof Ellipse e) {
+			kind[slot] = ELLIPSE;
+			setCorners(slot, e.getX1(), e.getY1(), e.getX2(), e.getY2());
+		}
+		else if (shape instanceof Rectangle r) {
+			kind[slot] = RECTANGLE;
+			setCorners(slot, r.getX1(), r.getY1(), r.getX2(), r.getY2());
+		}
+		else {
+			Segment s = (Segment) shape;
+			kind[slot] = SEGMENT;
+			setCorners(slot, s.getX1(), s.getY1(), s.getX2(), s.getY2());
+		}
+	}
+
+	private void setCorners(int slot, int a, int b, int c, int d) {
+		x1[slot] = a; y1[slot] = b; x2[slot] = c; y2[slot] = d;
+	}
+
+	/**
+	 * Builds the shape in a slot
+	 * @return the shape (a copy), or null if the slot is empty
+	 */
+	public Shape get(int slot) {
+		Color color = new Color(rgb[slot], true);
+		switch (kind[slot]) {
+			case ELLIPSE -> {
+				return new Ellipse(x1[slot], y1[slot], x2[slot], y2[slot], color);
+			}
+			case RECTANGLE -> {
+				return new Rectangle(x1[slot], y1[slot], x2[slot], y2[slot], color);
+			}
+			case SEGMENT -> {
+				return new Segment(x1[slot], y1[slot], x2[slot], y2[slot], color);
+			}
+			case POLYLINE -> {
+				int at = pointStart[slot], end = at + 2 * pointCount[slot];
+				Polyline polyline = new Polyline(new Point(points[at], points[at + 1]), color);
+				for (at += 2; at < end; at += 2) polyline.addPoint(points[at], points[at + 1]);
+				return polyline;
+			}
+			default -> {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return whether the slot holds a polyline
+	 */
+	public boolean isPolyline(int slot) {
+		return kind[slot] == POLYLINE;
+	}
+
+	/**
+	 * Adds joints (x and y interleaved) to the end of the polyline in a slot
+	 */
+	public void append(int slot, int[] xys) {
+		int n = pointCount[slot] + xys.length / 2;
+		if (n > pointRoom[slot]) {
+			if (pointStart[slot] + 2 * pointRoom[slot] == pointsUsed) {
+				// the last run in the array can just grow
+				pointsUsed = pointStart[slot];
+				pointsLive -= 2 * pointRoom[slot];
+				reserve(slot, Math.max(n, 2 * pointRoom[slot]));
+			}
+			else {
+				newRun(slot, Math.max(n, 2 * pointRoom[slot]));
+			}
+		}
+		System.arraycopy(xys, 0, points, pointStart[slot] + 2 * pointCount[slot], xys.length);
+		pointCount[slot] = n;
+	}
+
+	/**
+	 * Gives the polyline in a slot a new run at the end of the points array, with room for n points,
+	 * and copies its points there
+	 */
+	private void newRun(int slot, int n) {
+		int from = pointStart[slot], count = pointCount[slot];
+		if (count > 0) pointsLive -= 2 * pointRoom[slot];
+		reserve(slot, n);
+		if (count > 0) System.arraycopy(points, from, points, pointStart[slot], 2 * count);
+	}
+
+	/**
+	 * Sets aside room for n points at the end of the points array, as the slot's run
+	 */
+	private void reserve(int slot, int n) {
+		if (pointsUsed + 2 * n > points.length) {
+			points = Arrays.copyOf(points, Math.max(pointsUsed + 2 * n, points.length * 2));
+		}
+		pointStart[slot] = pointsUsed;
+		pointRoom[slot] = n;
+		pointsUsed += 2 * n;
+		pointsLive += 2 * n;
+	}
+
+	/**
+	 * Empties a slot
+	 */
+	public void clear(int slot) {
+		if (kind[slot] == POLYLINE) pointsLive -= 2 * pointRoom[slot];
+		kind[slot] = NONE;
+	}
+
+	public void moveBy(int slot, int dx, int dy) {
+		if (kind[slot] == POLYLINE) {
+			int at = pointStart[slot], end = at + 2 * pointCount[slot];
+			for (; at < end; at += 2) {
+				points[at] += dx;
+				points[at + 1] += dy;
+			}
+			return;
+		}
+		x1[slot] += dx; y1[slot] += dy;
+		x2[slot] += dx; y2[slot] += dy;
+	}
+
+	public void setColor(int slot, Color color) {
+		rgb[slot] = color.getRGB();
+	}
+
+	/**
+	 * Rearranges the first n slots: slot i gets what was in slot from[i] (the rest are emptied);
+	 * the polylines' points are packed along the way, if much of the points array has been left behind
+	 */
+	public void reorder(int[] from, int n) {
+		byte[] k = kind.clone();
+		int[] a = x1.clone(), b = y1.clone(), c = x2.clone(), d = y2.clone(), color = rgb.clone();
+		int[] start = pointStart.clone(), count = pointCount.clone(), room = pointRoom.clone();
+		Arrays.fill(kind, NONE);
+		for (int i = 0; i < n; i++) {
+			int f = from[i];
+			kind[i] = k[f];
+			x1[i] = a[f]; y1[i] = b[f]; x2[i] = c[f]; y2[i] = d[f];
+			rgb[i] = color[f];
+			pointStart[i] = start[f]; pointCount[i] = count[f]; pointRoom[i] = room[f];
+		}
+		if (pointsUsed > 2 * pointsLive + 1024) packPoints(n);
+	}
+
+	/**
+	 * Copies the polylines' runs in the first n slots to the front of a new points array (with just the room they need)
+	 */
+	private void packPoints(int n) {
+		int[] packed = new int[Math.max(64, pointsLive * 3 / 2)];
+		int used = 0;
+		for (int slot = 0; slot < n; slot++) {
+			if (kind[slot] != POLYLINE) continue;
+			int length = 2 * pointCount[slot];
+			System.arraycopy(points, pointStart[slot], packed, used, length);
+			pointStart[slot] = used;
+			pointRoom[slot] = pointCount[slot];
+			used += length;
+		}
+		points = packed;
+		pointsUsed = used;
+		pointsLive = used;
+	}
+
+	/**
+	 * @return how much heap the columns take up
+	 */
+	public long getBytes() {
+		return kind.length * (1L + 9 * 4) + points.length * 4L;
+	}
+}
@@ -1,81 +1,522 @@
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.TreeMap;
 
 /**
- * Sketch class used for managing all shapes for both client and server in collaborative painting tool
+ * Sketch class used for managing all shapes for both client and server in collaborative painting tool.
+ * Shapes are kept in slots, in ID order (back to front), with an array from ID to slot;
+ * a removed shape leaves an empty slot, and the slots are packed (and sorted, if a shape came in out of order)
+ * before they're next gone through, so drawing them all (see forEach) boxes and allocates nothing.
+ * For finding the shape at a point, it keeps a uniform grid of the shapes' bounds (built on the first such query,
+ * then updated as shapes are added, moved and removed), so only the few shapes near the point are tested;
+ * the same grid finds the shapes in a box (for a client that only gets the part of the sketch it can see).
+ * A columnar sketch (the server's, which may hold millions of shapes) keeps the shapes themselves as columns of
+ * primitives (see ShapeColumns) rather than objects; a shape asked for is built from them, so it's a copy,
+ * and changes go through moveShape and recolorShape.
  * @author Reed Levinson, Spring 2023
  */
 public class Sketch {
+    private static final int CELL = 64; // grid cell size, in pixels
+    private static final int MAX_CELLS = 64; // a shape over more cells than this is kept with the big ones instead
+
     int numID; // used for tracking which shape added the sketch is at
-    private TreeMap<Integer, Shape> shapeMap; // Map used to associate shape IDs to shapes
+    private int[] slotOf; // ID -> 1 + the shape's slot (0: no shape with that ID)
+    private int[] ids; // slot -> ID
+    private Shape[] shapes; // slot -> shape (null: removed, or columnar)
+    private ShapeColumns columns; // slot -> shape, as columns (null unless columnar)
+    private int slots; // slots used, including emptied ones
+    private int count; // shapes in the sketch
+    private boolean sorted; // whether the slots are in ID order
+    private long bytes; // roughly how much heap the shapes take up
+    private HashMap<Long, Cell> grid = null; // cell -> IDs of the shapes whose bounds overlap it (null until needed)
+    private Cell big = new Cell(); // IDs of the shapes too big for the grid, checked at every point
+    private int[][] indexed = new int[0][]; // ID -> the bounds the shape is in the grid under
+
+    /**
+     * Gets each shape in turn, with its ID
+     */
+    public interface Visitor {
+        void visit (int id, Shape shape);
+    }
 
     /**
-     * Constructor to generate empty ID-shape map and set total shapes to 0
+     * Constructor to generate empty ID-shape store and set total shapes to 0
      */
     public Sketch () {
-        shapeMap = new TreeMap<>();
+        this(false);
+    }
+
+    /**
+     * Constructor for an empty sketch, keeping its shapes as columns if columnar
+     */
+    public Sketch (boolean columnar) {
+        if (columnar) columns = new ShapeColumns(16);
+        clear();
         numID = 0;
     }
 
     /**
-     * Returns a list of IDs of shapes in order of front (newest added) to back (oldest)
+     * Roughly how much heap a shape takes up in the sketch: its slot and ID entries, the shape itself and its color,
+     * and for a polyline, its packed joints
+     */
+    public static long bytesOf (Shape shape) {
+        long b = 16 + 32 + 24;
+        if (shape instanceof Polyline p) b += 24 + 8L * p.size();
+        return b;
+    }
+
+    /**
+     * @return roughly how much heap the shapes take up (see bytesOf; if columnar, the columns and the slot and ID arrays)
+     */
+    public long getBytes () {
+        return columns == null ? bytes : columns.getBytes() + 4L * (slotOf.length + ids.length);
+    }
+
+    /**
+     * @return how many shapes are in the sketch
+     */
+    public int size () { return count; }
+
+    /**
+     * Goes through the shapes in order of back (oldest) to front (newest added), without allocating
+     * (unless columnar, where each is built in turn); the visitor may change shapes, but not add or remove them
+     */
+    public void forEach (Visitor visitor) {
+        tidy();
+        for (int slot = 0; slot < slots; slot++) {
+            visitor.visit(ids[slot], columns == null ? shapes[slot] : columns.get(slot));
+        }
+    }
+
+    /**
+     * @return the IDs of the shapes in order of back (oldest) to front (newest added)
+     */
+    public int[] getIDs () {
+        tidy();
+        int[] inOrder = new int[count];
+        int n = 0;
+        for (int slot = 0; slot < slots; slot++) inOrder[n++] = ids[slot];
+        return inOrder;
+    }
+
+    /**
+     * Returns a list of IDs of shapes in order of back (oldest) to front (newest added)
      * @return list of IDs
      */
     public List<Integer> getIDsInOrder() {
-        return shapeMap.navigableKeySet()
-                .stream()
-                .toList();
+        List<Integer> inOrder = new ArrayList<>(count);
+        forEach((id, shape) -> inOrder.add(id));
+        return inOrder;
     }
 
     /**
-     * Returns a list of shapes in order of front (newest added) to back (oldest)
+     * Returns a list of shapes in order of back (oldest) to front (newest added)
      * @return list of shapes
      */
     public List<Shape> getShapesInOrder() {
-        // uses a stream to iterate through the whole key set and get each shape its associated with
-        return shapeMap.navigableKeySet()
-                .stream()
-                .map((Integer i) -> shapeMap.get(i))
-                .toList();
+        List<Shape> inOrder = new ArrayList<>(count);
+        forEach((id, shape) -> inOrder.add(shape));
+        return inOrder;
+    }
+
+    /**
+     * Finds the shape at a point, considering the depth of shapes (the one closest to front/newest created)
+     * @return ID of the shape, or -1 if there is none there
+     */
+    public int topShapeAt (int x, int y) {
+        if (grid == null) buildIndex();
+        Cell cell = grid.get(key(Math.floorDiv(x, CELL), Math.floorDiv(y, CELL)));
+        // newest first, from the point's cell and the big shapes together
+        int i = cell == null ? -1 : cell.size - 1, j = big.size - 1;
+        while (i >= 0 || j >= 0) {
+            int id = j < 0 || (i >= 0 && cell.ids[i] > big.ids[j]) ? cell.ids[i--] : big.ids[j--];
+            if (shapeFromID(id).contains(x, y)) return id;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the shapes whose bounds reach into a box, from the grid (or, for a box over more cells than there are
+     * shapes, from all the shapes' bounds)
+     * @return their IDs, back to front
+     */
+    public int[] getIDsIn (int left, int top, int right, int bottom) {
+        if (grid == null) buildIndex();
+        int cx1 = Math.floorDiv(left, CELL), cy1 = Math.floorDiv(top, CELL);
+        int cx2 = Math.floorDiv(right, CELL), cy2 = Math.floorDiv(bottom, CELL);
+        int[] found = new int[16];
+        int n = 0;
+        if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > count) {
+            for (int slot = 0; slot < slots; slot++) {
+                int id = ids[slot];
+                if (slotOf[id] != slot + 1 || !overlaps(indexed[id], left, top, right, bottom)) continue;
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = id;
+            }
+        }
+        else {
+            for (int cx = cx1; cx <= cx2; cx++) {
+                for (int cy = cy1; cy <= cy2; cy++) {
+                    Cell cell = grid.get(key(cx, cy));
+                    if (cell == null) continue;
+                    for (int i = 0; i < cell.size; i++) {
+                        int id = cell.ids[i];
+                        // a shape over several cells is only taken from the first of them in the box
+                        int[] b = indexed[id];
+                        if (Math.max(cx1, Math.floorDiv(b[0], CELL)) != cx || Math.max(cy1, Math.floorDiv(b[1], CELL)) != cy) continue;
+                        if (!overlaps(b, left, top, right, bottom)) continue;
+                        if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                        found[n++] = id;
+                    }
+                }
+            }
+            for (int i = 0; i < big.size; i++) {
+                if (!overlaps(indexed[big.ids[i]], left, top, right, bottom)) continue;
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = big.ids[i];
+            }
+        }
+        found = Arrays.copyOf(found, n);
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * @return the bounds of the shape with the ID (as in Shape.getBounds: kept up to date as it changes, and not to be
+     * changed), from the grid, or null if there is no such shape
+     */
+    public int[] boundsOf (int id) {
+        if (grid == null) buildIndex();
+        return hasShape(id) ? indexed[id] : null;
+    }
+
+    private static boolean overlaps (int[] b, int left, int top, int right, int bottom) {
+        return b[0] <= right && b[2] >= left && b[1] <= bottom && b[3] >= top;
+    }
+
+    /**
+     * Moves a shape (keeping the grid up to date)
+     * @return whether there was a shape with that ID
+     */
+    public boolean moveShape (int id, int dx, int dy) {
+        if (!hasShape(id)) return false;
+        int slot = slotOf[id] - 1;
+        if (columns != null) columns.moveBy(slot, dx, dy);
+        else shapes[slot].moveBy(dx, dy);
+        if (grid != null) {
+            // the bounds just shift (without building the shape, if columnar)
+            int[] b = indexed[id];
+            reindex(id, b[0] + dx, b[1] + dy, b[2] + dx, b[3] + dy);
+        }
+        return true;
+    }
+
+    /**
+     * Recolors a shape
+     * @return whether there was a shape with that ID
+     */
+    public boolean recolorShape (int id, Color color) {
+        if (!hasShape(id)) return false;
+        int slot = slotOf[id] - 1;
+        if (columns != null) columns.setColor(slot, color);
+        else shapes[slot].setColor(color);
+        return true;
+    }
+
+    /**
+     * Adds joints (x and y interleaved) to the end of a polyline, as a stroke is streamed in
+     * @return whether there was a polyline with that ID
+     */
+    public boolean appendPoints (int id, int[] xys) {
+        if (!hasShape(id)) return false;
+        int slot = slotOf[id] - 1;
+        if (columns != null) {
+            if (!columns.isPolyline(slot)) return false;
+            columns.append(slot, xys);
+        }
+        else {
+            if (!(shapes[slot] instanceof Polyline polyline)) return false;
+            bytes -= bytesOf(polyline);
+            for (int i = 0; i < xys.length; i += 2) polyline.addPoint(xys[i], xys[i + 1]);
+            bytes += bytesOf(polyline);
+        }
+        if (grid != null) {
+            // the bounds grow to take in the new joints, as in Polyline.addPoint
+            int[] b = indexed[id];
+            int left = b[0], top = b[1], right = b[2], bottom = b[3];
+            for (int i = 0; i < xys.length; i += 2) {
+                left = Math.min(left, xys[i] - Polyline.REACH); top = Math.min(top, xys[i + 1] - Polyline.REACH);
+                right = Math.max(right, xys[i] + Polyline.REACH); bottom = Math.max(bottom, xys[i + 1] + Polyline.REACH);
+            }
+            reindex(id, left, top, right, bottom);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether there is a shape with that ID
+     */
+    public boolean hasShape (int id) {
+        return id >= 0 && id < slotOf.length && slotOf[id] != 0;
     }
 
     /**
      * Returns a particular shape from its ID number
      * @param n ID of shape
-     * @return shape
+     * @return shape (if columnar, built for the caller: changing it doesn't change the sketch)
      */
-    public Shape shapeFromID (int n) { return shapeMap.get(n); }
+    public Shape shapeFromID (int n) {
+        if (!hasShape(n)) return null;
+        return columns == null ? shapes[slotOf[n] - 1] : columns.get(slotOf[n] - 1);
+    }
 
     /**
      * (only for use by clients)
-     * Adds a shape to the shape map with a pre-existing ID
+     * Adds a shape to the sketch with a pre-existing ID
      * @param id ID of shape to be added
      * @param shape shape to be added
      */
     public void addShapeFromClient (int id, Shape shape) {
-        shapeMap.put(id, shape);
+        put(id, shape);
     }
 
     /**
      * (only for use by server)
      * Adds a new shape to a new ID, increasing the total number of shapes in sketch
-     * and making a new entry in the map
+     * and giving it the next slot
      * @param shape shape to be added
      * @return ID of the newly added shape
      */
     public int addShapeFromServer (Shape shape) {
         numID++;
         int currID = numID;
-        shapeMap.put(currID, shape);
+        put(currID, shape);
         return currID;
     }
 
+    /**
+     * (only for use by server, when rebuilding the sketch)
+     * Adds a shape with the ID it was given before, keeping the IDs of new shapes past it
+     * @param id ID of shape to be added
+     * @param shape shape to be added
+     */
+    public void restoreShape (int id, Shape shape) {
+        put(id, shape);
+        numID = Math.max(numID, id);
+    }
+
+    /**
+     * @return the ID most recently given to a new shape
+     */
+    public int getNumID () { return numID; }
+
+    /**
+     * (only for use by server, when rebuilding the sketch)
+     * Sets the ID most recently given to a new shape, which may have been deleted since
+     * @param n ID to continue from
+     */
+    public void restoreNumID (int n) {
+        numID = Math.max(numID, n);
+    }
+
+    /**
+     * Removes all shapes from the sketch (ids are not reused)
+     */
+    public void clear () {
+        slotOf = new int[16];
+        ids = new int[16];
+        if (columns == null) shapes = new Shape[16];
+        else columns = new ShapeColumns(16);
+        slots = count = 0;
+        sorted = true;
+        bytes = 0;
+        grid = null;
+        big = new Cell();
+        indexed = new int[0][];
+    }
+
     /**
      * Removes a shape from the sketch from its ID
      * @param id ID of shape to be removed
      */
     public void removeShape (int id) {
-        shapeMap.remove(id);
+        if (!hasShape(id)) return;
+        int slot = slotOf[id] - 1;
+        if (columns != null) {
+            columns.clear(slot);
+        }
+        else {
+            bytes -= bytesOf(shapes[slot]);
+            shapes[slot] = null;
+        }
+        slotOf[id] = 0;
+        count--;
+        if (grid != null) unindex(id);
+        if (slots - count > Math.max(16, count)) tidy(); // don't let the emptied slots outnumber the shapes
+    }
+
+    private void put (int id, Shape shape) {
+        if (id < 0) throw new IllegalArgumentException("bad shape ID " + id);
+        if (id >= slotOf.length) slotOf = Arrays.copyOf(slotOf, Math.max(id + 1, slotOf.length * 2));
+        if (slotOf[id] == 0) {
+            if (slots == ids.length) {
+                ids = Arrays.copyOf(ids, slots * 2);
+                if (columns == null) shapes = Arrays.copyOf(shapes, slots * 2);
+                else columns.ensure(slots * 2);
+            }
+            if (slots > 0 && id < ids[slots - 1]) sorted = false;
+            ids[slots] = id;
+            slotOf[id] = ++slots;
+            count++;
+        }
+        else if (columns == null) {
+            bytes -= bytesOf(shapes[slotOf[id] - 1]); // replaces the shape with that ID, in its slot
+        }
+        if (columns != null) {
+            columns.set(slotOf[id] - 1, shape);
+        }
+        else {
+            shapes[slotOf[id] - 1] = shape;
+            bytes += bytesOf(shape);
+        }
+        if (grid != null) index(id, shape);
+    }
+
+    /**
+     * Packs the shapes into the first slots, in ID order (if they aren't already)
+     */
+    private void tidy () {
+        if (sorted && slots == count) return;
+        // packs and sorts the IDs, then moves each shape to its ID's new slot from the one it's still in
+        int n = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (slotOf[ids[slot]] == slot + 1) ids[n++] = ids[slot];
+        }
+        if (!sorted) Arrays.sort(ids, 0, n);
+        int[] from = new int[n];
+        for (int slot = 0; slot < n; slot++) {
+            from[slot] = slotOf[ids[slot]] - 1;
+            slotOf[ids[slot]] = slot + 1;
+        }
+        if (columns != null) {
+            columns.reorder(from, n);
+        }
+        else {
+            Shape[] packed = new Shape[shapes.length];
+            for (int slot = 0; slot < n; slot++) packed[slot] = shapes[from[slot]];
+            shapes = packed;
+        }
+        slots = n;
+        sorted = true;
+    }
+
+    private void buildIndex () {
+        grid = new HashMap<>();
+        for (int slot = 0; slot < slots; slot++) {
+            int id = ids[slot];
+            if (slotOf[id] == slot + 1) index(id, shapeFromID(id));
+        }
+    }
+
+    /**
+     * Puts a shape in the grid under its current bounds (taking it out from under its old ones, if they differ)
+     */
+    private void index (int id, Shape shape) {
+        int[] now = shape.getBounds().clone(); // the shape's own changes as it moves
+        if (id >= indexed.length) indexed = Arrays.copyOf(indexed, Math.max(id + 1, indexed.length * 2));
+        int[] was = indexed[id];
+        indexed[id] = now;
+        if (was != null) {
+            if (sameCells(was, now)) return;
+            updateCells(id, was, false);
+        }
+        updateCells(id, now, true);
+    }
+
+    /**
+     * Changes the bounds a shape is in the grid under, in place (so a MOVE or an APPEND allocates nothing,
+     * unless it takes the shape into other cells)
+     */
+    private void reindex (int id, int left, int top, int right, int bottom) {
+        int[] b = indexed[id];
+        boolean same = Math.floorDiv(b[0], CELL) == Math.floorDiv(left, CELL)
+                && Math.floorDiv(b[1], CELL) == Math.floorDiv(top, CELL)
+                && Math.floorDiv(b[2], CELL) == Math.floorDiv(right, CELL)
+                && Math.floorDiv(b[3], CELL) == Math.floorDiv(bottom, CELL);
+        if (!same) updateCells(id, b, false);
+        b[0] = left; b[1] = top; b[2] = right; b[3] = bottom;
+        if (!same) updateCells(id, b, true);
+    }
+
+    private void unindex (int id) {
+        int[] was = id < indexed.length ? indexed[id] : null;
+        if (was == null) return;
+        indexed[id] = null;
+        updateCells(id, was, false);
+    }
+
+    /**
+     * Adds the ID to (or removes it from) every cell the bounds overlap, or the big shapes if that's too many
+     */
+    private void updateCells (int id, int[] b, boolean add) {
+        int cx1 = Math.floorDiv(b[0], CELL), cy1 = Math.floorDiv(b[1], CELL);
+        int cx2 = Math.floorDiv(b[2], CELL), cy2 = Math.floorDiv(b[3], CELL);
+        if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > MAX_CELLS) {
+            if (add) big.add(id);
+            else big.remove(id);
+            return;
+        }
+        for (int cx = cx1; cx <= cx2; cx++) {
+            for (int cy = cy1; cy <= cy2; cy++) {
+                long key = key(cx, cy);
+                if (add) {
+                    grid.computeIfAbsent(key, k -> new Cell()).add(id);
+                }
+                else {
+                    Cell cell = grid.get(key);
+                    if (cell != null && cell.remove(id) && cell.size == 0) grid.remove(key);
+                }
+            }
+        }
+    }
+
+    private static boolean sameCells (int[] a, int[] b) {
+        for (int i = 0; i < 4; i++) {
+            if (Math.floorDiv(a[i], CELL) != Math.floorDiv(b[i], CELL)) return false;
+        }
+        return true;
+    }
+
+    private static long key (int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    /**
+     * The IDs of the shapes in one cell of the grid, in increasing order (back to front)
+     */
+    private static class Cell {
+        private int[] ids = new int[4];
+        private int size = 0;
+
+        private void add (int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) return;
+            i = -i - 1;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            ids[i] = id;
+            size++;
+        }
+
+        private boolean remove (int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i < 0) return false;
+            System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+            size--;
+            return true;
+        }
     }
 
     /**
@@ -84,20 +525,7 @@ public class Sketch {
      * @return shape derived from command
      */
     public static Shape parseCommand (String s) {
-        // splits command into component parts by spaces (ADD shapeType |info|)
-        // then splits info into desired info for shape generation
-        String[] parts = s.split(" ");
-        String[] info = s.split("\\|")[1].split(" ");
-        switch (parts[1]) {
-            case "ellipse":
-                return Ellipse.generateShapeFromParts(info);
-            case "rectangle":
-                return Rectangle.generateShapeFromParts(info);
-            case "polyline":
-                return Polyline.generateShapeFromParts(info);
-            case "segment":
-                return Segment.generateShapeFromParts(info);
-        }
-        return null;
+        // reads the shape type and the info between the |'s straight off the command
+        return CommandParser.get().parseShape(s);
     }
 }
@@ -0,0 +1,124 @@
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Retained rendering of a sketch: the shapes are drawn once into cached layers (see SketchTiles), below and above the
+ * active shape (the one being dragged, if any), and each paint just copies those, drawing only the active shape afresh
+ * in between. A change to the sketch marks where it happened as stale in the layer the shape is in, and only that part
+ * of the layer is drawn again, at the next paint. Changing the active shape only redraws the layers where it and the
+ * shapes in front of it are (which, for a shape near the front, as the one just drawn usually is, is not much).
+ * The view (panning and zooming) maps the sketch onto the canvas; changing it redraws the layers.
+ * Painted on the event dispatch thread; told of changes from any thread.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class SketchLayers {
+	public static final int NONE = -1;	// no active shape
+
+	private Sketch sketch;
+	private SketchTiles below, above;	// the shapes behind the active one, and in front of it (all in below if none)
+	private int active = NONE;			// ID of the shape drawn afresh each paint (NONE: no shape)
+	private double originX = 0, originY = 0, scale = 1;	// the view: see setView
+
+	/**
+	 * Layers drawn on the caller's thread
+	 */
+	public SketchLayers(Sketch sketch) {
+		this(sketch, null);
+	}
+
+	/**
+	 * Layers whose stale tiles are drawn in parallel on the pool (null: on the caller's thread)
+	 */
+	public SketchLayers(Sketch sketch, ForkJoinPool pool) {
+		this.sketch = sketch;
+		below = new SketchTiles(sketch, pool);
+		above = new SketchTiles(sketch, pool);
+	}
+
+	/**
+	 * Changes the view: the point of the sketch at the canvas's top left, and the canvas pixels per unit of the sketch
+	 */
+	public synchronized void setView(double originX, double originY, double scale) {
+		this.originX = originX;
+		this.originY = originY;
+		this.scale = scale;
+		below.setView(originX, originY, scale);
+		above.setView(originX, originY, scale);
+	}
+
+	/**
+	 * @return the box of the canvas a box of the sketch covers in the current view
+	 */
+	public int[] toCanvas(int[] box) {
+		return below.toCanvas(box);
+	}
+
+	/**
+	 * Makes a shape the active one, drawn afresh each paint between the layers (NONE: none), while it is being dragged
+	 */
+	public synchronized void setActive(int id) {
+		if (id == active) return;
+		// the layers only change where the shapes from the lower of the two IDs up are
+		int from = active == NONE ? id : id == NONE ? active : Math.min(active, id);
+		int[] box = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+		sketch.forEach((i, shape) -> {
+			if (i >= from) {
+				int[] b = shape.getBounds();
+				box[0] = Math.min(box[0], b[0]); box[1] = Math.min(box[1], b[1]);
+				box[2] = Math.max(box[2], b[2]); box[3] = Math.max(box[3], b[3]);
+			}
+		});
+		if (active == NONE) above.clear(); // above hasn't kept up with changes, so it starts empty
+		active = id;
+		if (box[0] > box[2]) return;
+		below.invalidate(box);
+		above.invalidate(box);
+	}
+
+	/**
+	 * Marks where a shape changed (a box, as in Shape.getBounds) as stale, in its layer
+	 * (the active shape is drawn afresh anyway)
+	 */
+	public synchronized void invalidate(int id, int[] box) {
+		if (box == null || id == active) return;
+		if (active == NONE || id < active) below.invalidate(box);
+		else above.invalidate(box);
+	}
+
+	/**
+	 * Marks everything as stale (e.g. when the sketch is emptied)
+	 */
+	public synchronized void invalidateAll() {
+		below.invalidateAll();
+		above.invalidateAll();
+	}
+
+	/**
+	 * Paints the sketch (within g's clip) onto a canvas of the given size, bringing the layers up to date first
+	 */
+	public void paint(Graphics g, int width, int height) {
+		int id;
+		double originX, originY, scale;
+		synchronized (this) {
+			id = active;
+			originX = this.originX; originY = this.originY; scale = this.scale;
+		}
+		below.update(width, height, NONE, id == NONE ? Integer.MAX_VALUE : id);
+		if (id != NONE) above.update(width, height, id, Integer.MAX_VALUE);
+
+		below.draw(g);
+		if (id != NONE) {
+			Shape shape = sketch.shapeFromID(id);
+			if (shape != null) {
+				Graphics2D view = (Graphics2D) g.create();
+				view.scale(scale, scale);
+				view.translate(-originX, -originY);
+				shape.draw(view);
+				view.dispose();
+			}
+			above.draw(g);
+		}
+	}
+}
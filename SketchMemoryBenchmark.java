@@ -0,0 +1,77 @@
+import java.awt.Color;
+import java.awt.Point;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the two ways a sketch can keep its shapes, objects and columns (see Sketch): fills each with the same shapes
+ * (every fourth a freehand polyline), then measures the heap they hold, how long a full collection takes with them live,
+ * and how long a pass over them all (as a snapshot or checkpoint makes) and a round of moves take.
+ * Usage: java SketchMemoryBenchmark [--shapes=n] [--points=n] (--points per polyline)
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class SketchMemoryBenchmark {
+	public static void main(String[] args) {
+		Options options = Options.parse(args);
+		int shapes = options.getInt("shapes", 1_000_000);
+		int points = options.getInt("points", 20);
+
+		for (boolean columnar : new boolean[] { false, true }) {
+			long before = usedHeap();
+			Sketch sketch = fill(new Sketch(columnar), shapes, points);
+			long used = usedHeap() - before;
+
+			long collections = collections(), start = System.nanoTime();
+			System.gc();
+			long gc = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long sum = 0;
+			for (int id : sketch.getIDs()) sum += sketch.shapeFromID(id).getBounds()[0];
+			long pass = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int id = 1; id <= shapes; id++) sketch.moveShape(id, 1, -1);
+			long moves = System.nanoTime() - start;
+
+			System.out.printf("%-8s %,d shapes: heap %,d MB (estimated %,d MB), full gc %d ms (%d collections), "
+							+ "pass over all %d ms, move all %d ms (%d)%n",
+					columnar ? "columns" : "objects", sketch.size(), used >> 20, sketch.getBytes() >> 20,
+					gc / 1_000_000, collections() - collections, pass / 1_000_000, moves / 1_000_000, sum);
+			sketch.clear();
+		}
+	}
+
+	private static Sketch fill(Sketch sketch, int shapes, int points) {
+		Color[] colors = { Color.black, Color.red, Color.blue, Color.green };
+		for (int i = 0; i < shapes; i++) {
+			int x = i % 1000, y = i / 1000 % 1000;
+			Color color = colors[i % colors.length];
+			Shape shape = switch (i % 4) {
+				case 0 -> new Rectangle(x, y, x + 20, y + 10, color);
+				case 1 -> new Ellipse(x, y, x + 10, y + 20, color);
+				case 2 -> new Segment(x, y, x + 15, y + 15, color);
+				default -> {
+					Polyline polyline = new Polyline(new Point(x, y), color);
+					for (int p = 1; p < points; p++) polyline.addPoint(new Point(x + p, y + (p & 3)));
+					yield polyline;
+				}
+			};
+			sketch.addShapeFromServer(shape);
+		}
+		return sketch;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long collections() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) n += gc.getCollectionCount();
+		return n;
+	}
+}
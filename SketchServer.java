@@ -1,29 +1,281 @@
 import java.awt.*;
 import java.net.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * A server to handle sketches: getting requests from the clients,
- * updating the overall state, and passing them on to the clients
+ * updating the overall state, and passing them on to the clients.
+ * Each document is a room, with its own sketch and sequencer; a client joins the room named in its HELLO
+ * (or the default one), and only hears about that room. The rooms' sequencers share a pool of worker threads.
  *
  * @author Reed Levinson, Spring 2023
  */
 public class SketchServer {
+	public static final int HANDSHAKE_MILLIS = 200;		// how long a new client has to say HELLO before the snapshot
+	private static final int STATS_ROOMS = 10;			// busiest rooms printed with the stats
+
 	private ServerSocket listen;						// for accepting connections
-	private ArrayList<SketchServerCommunicator> comms;	// all the connections with clients
-	private Sketch sketch;								// the state of the world
-	
+	private ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();				// documents, by name
+	private ConcurrentHashMap<String, CompletableFuture<Room>> opening = new ConcurrentHashMap<>();	// ... being opened
+	private volatile int maxRooms = 10000;				// most rooms there may be (hibernated ones included)
+	private ConcurrentHashMap<ServerConnection, Room> roomOf = new ConcurrentHashMap<>();	// the room each client is in
+	private ExecutorService workers;					// the rooms' sequencers run here
+	private Executor[] fanOut;							// and pass operations on to the clients from here
+	private ScheduledExecutorService timer;				// for the sequencers' ticks and snapshot polling
+	private ExecutorService loaders;					// where the nio engine's clients join, as that may load a room
+	private int queueCapacity = 4096;					// most messages waiting for any one client
+	private OutboundQueue.Policy slowPolicy = OutboundQueue.Policy.CONFLATE;	// what to do when a client falls behind
+	private boolean allowBinary = true;					// whether clients may switch to the binary protocol
+	private long epoch = new Random().nextLong() & Long.MAX_VALUE;	// tells this run's sequence numbers from another's
+	private volatile int tickMillis = 0;				// for new rooms: tick length, if batching
+	private volatile int logCapacity = 10000;			// ... operations kept for resuming clients
+	private volatile File journalDir = null;			// ... where rooms are journaled, if anywhere
+	private volatile Journal.Sync journalSync;			// ... and how
+	private volatile int journalSyncMillis;
+	private File hibernateDir = null;					// where rooms that aren't journaled are put away
+
 	public SketchServer(ServerSocket listen) {
+		this(listen, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * @param fanOutThreads how many threads pass operations on to the clients
+	 */
+	public SketchServer(ServerSocket listen, int fanOutThreads) {
+		this(listen, Runtime.getRuntime().availableProcessors(), fanOutThreads);
+	}
+
+	/**
+	 * @param workerThreads how many threads the rooms' sequencers share
+	 * @param fanOutThreads how many threads pass operations on to the clients
+	 */
+	public SketchServer(ServerSocket listen, int workerThreads, int fanOutThreads) {
 		this.listen = listen;
-		sketch = new Sketch();
-		comms = new ArrayList<SketchServerCommunicator>();
+		workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), Threads.daemons("sketch-room"));
+		fanOut = Sequencer.fanOutExecutors(Math.max(1, fanOutThreads));
+		timer = Executors.newSingleThreadScheduledExecutor(Threads.daemons("sketch-timer"));
+		loaders = Executors.newCachedThreadPool(Threads.daemons("sketch-loader"));
 	}
 
+	/**
+	 * The default room's sketch, which is owned by its sequencer; anyone else reading it may see it mid-change
+	 * (null if the room is hibernated)
+	 */
 	public Sketch getSketch() {
-		return sketch;
+		return room(WireProtocol.DEFAULT_ROOM).getSketch();
+	}
+
+	/**
+	 * @return the room with that name, opened (and restored from its journal, if journaling) if it isn't already;
+	 * opening one doesn't hold up any other room (anyone else asking for the same one waits for it)
+	 * @throws IllegalStateException if it would be one room too many (see setMaxRooms)
+	 */
+	public Room room(String name) {
+		Room room = rooms.get(name);
+		if (room != null) return room;
+		CompletableFuture<Room> opened = new CompletableFuture<>();
+		CompletableFuture<Room> other = opening.putIfAbsent(name, opened);
+		if (other != null) return other.join();
+		try {
+			room = rooms.get(name); // opened by someone else just now
+			if (room == null) {
+				if (rooms.size() >= maxRooms) throw new IllegalStateException("too many rooms to open " + name);
+				room = openRoom(name);
+				rooms.put(name, room);
+			}
+			opened.complete(room);
+			return room;
+		}
+		catch (RuntimeException e) {
+			System.err.println("couldn't open room " + name + ": " + e.getMessage());
+			opened.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			opening.remove(name);
+		}
+	}
+
+	/**
+	 * Sets the most rooms there may be, in memory or hibernated; a client asking for a new one beyond that is turned away
+	 */
+	public void setMaxRooms(int max) {
+		maxRooms = max;
+	}
+
+	private Room openRoom(String name) {
+		Room room = new Room(name, workers, fanOut, timer);
+		room.setLogCapacity(logCapacity);
+		room.setTickMillis(tickMillis);
+		if (journalDir != null) {
+			try {
+				room.openJournal(journalDir(name), journalSync, journalSyncMillis);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException("can't open the journal for room " + name, e);
+			}
+		}
+		return room;
+	}
+
+	/**
+	 * The default room keeps its journal in the journal directory itself (as before there were rooms),
+	 * every other room in a directory of its own under rooms/
+	 */
+	private File journalDir(String name) {
+		if (name.equals(WireProtocol.DEFAULT_ROOM)) return journalDir;
+		return roomDir(new File(journalDir, "rooms"), name);
+	}
+
+	/**
+	 * @return a room's own directory in parent
+	 * @throws IllegalArgumentException if the name would put it anywhere else (WireProtocol.room already turns such
+	 * names away; this is so that no room's files can ever land on another's, or outside parent)
+	 */
+	private static File roomDir(File parent, String name) {
+		Path base = parent.toPath().toAbsolutePath().normalize();
+		Path dir = base.resolve(name).normalize();
+		if (!WireProtocol.isRoomName(name) || !base.equals(dir.getParent())) {
+			throw new IllegalArgumentException("bad room name " + name);
+		}
+		return dir.toFile();
+	}
+
+	/**
+	 * Every so often, hibernates rooms nobody has been in for idleSeconds, least recently used first,
+	 * until the rooms in memory fit in budgetBytes (rooms that aren't journaled are saved under dir)
+	 */
+	public void hibernateEvery(int seconds, int idleSeconds, long budgetBytes, File dir) {
+		hibernateDir = dir;
+		Thread hibernator = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(seconds * 1000L);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				hibernateIdle(idleSeconds * 1_000_000_000L, budgetBytes);
+			}
+		}, "sketch-hibernator");
+		hibernator.setDaemon(true);
+		hibernator.start();
+	}
+
+	/**
+	 * Hibernates rooms that have been empty for at least idleNanos, least recently used first,
+	 * until the rooms left in memory take up no more than budgetBytes
+	 */
+	public void hibernateIdle(long idleNanos, long budgetBytes) {
+		long now = System.nanoTime();
+		long total = 0;
+		List<Room> idle = new ArrayList<>();
+		for (Room room : rooms.values()) {
+			total += room.getFootprint();
+			if (room.isLoaded() && room.getNumConnections() == 0 && now - room.getIdleSince() >= idleNanos) idle.add(room);
+		}
+		idle.sort((a, b) -> Long.compare(a.getIdleSince() - now, b.getIdleSince() - now));
+		for (Room room : idle) {
+			if (total <= budgetBytes) break;
+			long bytes = room.getFootprint();
+			try {
+				if (room.hibernate(roomDir(hibernateDir, room.getName()))) {
+					total -= bytes;
+				}
+			}
+			catch (IOException | IllegalArgumentException e) {
+				System.err.println("couldn't hibernate room " + room.getName());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return the rooms open now
+	 */
+	public Collection<Room> getRooms() {
+		return rooms.values();
+	}
+
+	/**
+	 * Sets how many messages may wait for one client, and what happens beyond that
+	 */
+	public void setOutboundLimits(int capacity, OutboundQueue.Policy policy) {
+		queueCapacity = capacity;
+		slowPolicy = policy;
+	}
+
+	/**
+	 * Sets whether clients that ask for the binary protocol get it (otherwise everyone speaks text)
+	 */
+	public void setAllowBinary(boolean allow) {
+		allowBinary = allow;
+	}
+
+	/**
+	 * Journals every room in dir (each rebuilt from its latest checkpoint and the journal after it when opened),
+	 * and opens the default room now (before any clients connect)
+	 */
+	public void setJournal(File dir, Journal.Sync sync, int syncMillis) throws IOException {
+		journalSync = sync;
+		journalSyncMillis = syncMillis;
+		journalDir = dir;
+		try {
+			room(WireProtocol.DEFAULT_ROOM);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 	}
-	
+
+	/**
+	 * Checkpoints every room every so often, in the background, so a restart has little of the journal to replay
+	 */
+	public void checkpointEvery(int seconds) {
+		timer.scheduleWithFixedDelay(() -> {
+			for (Room room : rooms.values()) room.checkpoint();
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Sets how many recent operations each room keeps for clients resuming after a lost connection
+	 */
+	public void setLogCapacity(int capacity) {
+		logCapacity = capacity;
+		for (Room room : rooms.values()) room.setLogCapacity(capacity);
+	}
+
+	/**
+	 * Starts sending operations in batches, one per tick, with a shape's MOVEs within a tick summed into one
+	 * @param millis tick length
+	 */
+	public void startTicks(int millis) {
+		tickMillis = millis;
+		for (Room room : rooms.values()) room.setTickMillis(millis);
+	}
+
+	/**
+	 * Makes the outbound queue for a new connection, with the configured limits
+	 */
+	public OutboundQueue newOutboundQueue() {
+		return new OutboundQueue(queueCapacity, slowPolicy);
+	}
+
+	/**
+	 * Answers a client's HELLO, agreeing to binary if the client asked for it and the server allows it
+	 * @param hello the client's HELLO line
+	 * @return the WELCOME to send back
+	 */
+	public Message welcome(String hello) {
+		return Message.welcome(allowBinary && WireProtocol.isBinary(hello), epoch);
+	}
+
 	/**
 	 * The usual loop of accepting connections and firing off new threads to handle them
 	 */
@@ -31,84 +283,178 @@ public class SketchServer {
 		System.out.println("server ready for connections");
 		while (true) {
 			SketchServerCommunicator comm = new SketchServerCommunicator(listen.accept(), this);
-			comm.setDaemon(true);
 			comm.start();
-			addCommunicator(comm);
 		}
 	}
 
 	/**
-	 * Adds the communicator to the list of current communicators
+	 * Adds the communicator to the default room
 	 */
-	public synchronized void addCommunicator(SketchServerCommunicator comm) {
-		comms.add(comm);
+	public Room addCommunicator(ServerConnection comm) {
+		return addCommunicator(comm, null);
 	}
 
 	/**
-	 * Removes the communicator from the list of current communicators
+	 * Adds the communicator for a client that opened with the given HELLO (or null if it didn't say one)
+	 * to the room it asked for; that room's sequencer tells the client the current state of its world
+	 * and then passes on every operation after it, so the client neither misses nor gets ahead of any
+	 * (a client resuming from this run gets just the operations it missed, if they're still in the log)
+	 * @return the room, for the client's commands
 	 */
-	public synchronized void removeCommunicator(SketchServerCommunicator comm) {
-		comms.remove(comm);
+	public Room addCommunicator(ServerConnection comm, String hello) {
+		Room room = room(hello == null ? WireProtocol.DEFAULT_ROOM : WireProtocol.room(hello));
+		roomOf.put(comm, room);
+		room.join(comm, hello, epoch);
+		return room;
 	}
 
 	/**
-	 * Sends the message from the one communicator to all (including the originator)
+	 * Like addCommunicator, but on a thread of its own, for callers that mustn't wait while the room is opened
+	 * or brought back from hibernation (replaying its journal), or while it is being hibernated:
+	 * the nio engine's event loops, which serve many other clients.
+	 * Not on the sequencers' workers, as hibernating a room waits for one of them while holding the room.
+	 * @return the room, once the client is in it
 	 */
-	public synchronized void broadcast(String msg) {
-		for (SketchServerCommunicator comm : comms) {
-			comm.send(msg);
-		}
+	public CompletableFuture<Room> addCommunicatorLater(ServerConnection comm, String hello) {
+		return CompletableFuture.supplyAsync(() -> addCommunicator(comm, hello), loaders);
 	}
 
 	/**
-	 * Method used to resolve a command fed to server from a client editor
-	 * Returns relevant command to all client editors (including one in which change was made)
-	 * @param command command to be parsed and re-fed to client editors
+	 * @return how many clients are currently connected, in all rooms
 	 */
-	public synchronized void resolveCommand (String command) {
-		// splits command up on spaces
-		String[] parts = command.split(" ");
-		switch (parts[0]) {
-			// if ADD, generates new shape using parseCommand method in Sketch, adds shape to overall server sketch,
-			// receives its ID, generates appropriate command for client editors,
-			// and broadcasts to all clients to execute
-			case "ADD" -> {
-				Shape shape = Sketch.parseCommand(command);
-				int id = sketch.addShapeFromServer(shape);
-				String s = "ADD " + id + " " + shape.toString();
-				broadcast(s);
-			}
+	public int getNumConnections() {
+		return roomOf.size();
+	}
 
-			// if MOVE, determines which shape to be moved from command using embedded ID, gathers particular
-			// dx and dy distances, applies to server sketch, and broadcasts to all client editors
-			// the move command to execute
-			case "MOVE" -> {
-				int id = Integer.parseInt(parts[1]);
-				Shape shape = sketch.shapeFromID(id);
-				shape.moveBy(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
-				broadcast(command);
-			}
+	/**
+	 * Removes the communicator from its room
+	 */
+	public void removeCommunicator(ServerConnection comm) {
+		Room room = roomOf.remove(comm);
+		if (room != null) room.leave(comm);
+	}
 
-			// if RECOLOR, gets shape ID from command, determines shape from shape ID in sketch, set color of shape
-			// to new color in server sketch, and broadcasts recoloring command to all clients to execute
-			case "RECOLOR" -> {
-				int id = Integer.parseInt(parts[1]);
-				Shape shape = sketch.shapeFromID(id);
-				shape.setColor(new Color(Integer.parseInt(parts[2])));
-				broadcast(command);
-			}
+	/**
+	 * Prints how far behind the clients are (current and worst outbound queue depth, and messages dropped),
+	 * overall and for the rooms with the most operations since last time
+	 */
+	public void printStats() {
+		int depth = 0, highWater = 0;
+		long dropped = 0;
+		for (ServerConnection comm : roomOf.keySet()) {
+			OutboundQueue q = comm.getOutbound();
+			depth = Math.max(depth, q.getDepth());
+			highWater = Math.max(highWater, q.getHighWaterMark());
+			dropped += q.getDropped();
+		}
+		int loaded = 0;
+		long bytes = 0;
+		for (Room room : rooms.values()) {
+			if (room.isLoaded()) loaded++;
+			bytes += room.getFootprint();
+		}
+		System.out.println("rooms: " + rooms.size() + " (" + loaded + " in memory, ~" + bytes / (1024 * 1024) + " MB), "
+				+ "clients: " + roomOf.size() + ", max queue depth: " + depth
+				+ ", max high-water mark: " + highWater + ", dropped: " + dropped);
 
-			// if DELETE, gets shape ID from command, removes shape from server sketch using ID, and broadcasts
-			// delete command to all client editors to execute
-			case "DELETE" -> {
-				int id = Integer.parseInt(parts[1]);
-				sketch.removeShape(id);
-				broadcast(command);
-			}
+		List<Room> busiest = new ArrayList<>();
+		Map<Room, Long> ops = new HashMap<>();
+		for (Room room : rooms.values()) {
+			ops.put(room, room.takeOps());
+			busiest.add(room);
+		}
+		busiest.sort((a, b) -> Long.compare(ops.get(b), ops.get(a)));
+		for (Room room : busiest.subList(0, Math.min(STATS_ROOMS, busiest.size()))) {
+			System.out.println("  " + room.getStats(ops.get(room)));
 		}
 	}
-	
+
+	/**
+	 * Prints the stats every so often, on a background thread
+	 */
+	public void printStatsEvery(int seconds) {
+		Thread stats = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(seconds * 1000L);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				printStats();
+			}
+		}, "sketch-stats");
+		stats.setDaemon(true);
+		stats.start();
+	}
+
+	/**
+	 * Starts the server; --engine=threads (default) gives each connection its own thread,
+	 * --engine=nio serves all connections from a few selector event loops (--loops=n);
+	 * --virtual runs the per-connection threads as virtual threads;
+	 * --queue=n and --slow=drop|conflate|disconnect limit how far a client may fall behind;
+	 * --stats=s prints queue stats every s seconds; --text-only turns down clients asking for binary;
+	 * --tick=ms batches broadcasts (and sums MOVEs) over ticks of that length;
+	 * --workers=n sets how many threads the rooms' sequencers share;
+	 * --fanout=n sets how many threads pass operations on to the clients;
+	 * --log=n keeps the last n operations for clients resuming after a lost connection;
+	 * --max-rooms=n caps how many rooms clients may open (hibernated ones included);
+	 * --journal=dir saves every operation there (each room other than the default under rooms/)
+	 * and rebuilds each room from it when it's opened,
+	 * forcing it to disk by --fsync=every|group|interval (every --fsync-millis=ms),
+	 * and checkpoints the sketch there every --checkpoint=s seconds (0 for never);
+	 * rooms empty for --hibernate-after=s seconds (0 for never) are put away on disk (in the journal,
+	 * or under --hibernate-dir=path) when the rooms in memory take up more than --room-memory=mb
+	 */
 	public static void main(String[] args) throws Exception {
-		new SketchServer(new ServerSocket(4242)).getConnections();
+		Options options = Options.parse(args);
+		Threads.setVirtual(options.getBoolean("virtual"));
+		int port = options.getInt("port", 4242);
+		String engine = options.getString("engine", "threads");
+		if (!engine.equals("threads") && !engine.equals("nio")) {
+			System.err.println("unknown engine " + engine);
+			return;
+		}
+
+		ServerSocketChannel channel = null;
+		ServerSocket listen;
+		if (engine.equals("nio")) {
+			channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(port));
+			listen = channel.socket();
+		}
+		else {
+			listen = new ServerSocket(port);
+		}
+
+		SketchServer server = new SketchServer(listen,
+				options.getInt("workers", Runtime.getRuntime().availableProcessors()),
+				options.getInt("fanout", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+		server.setOutboundLimits(options.getInt("queue", 4096),
+				OutboundQueue.Policy.valueOf(options.getString("slow", "conflate").toUpperCase()));
+		server.setAllowBinary(!options.getBoolean("text-only"));
+		server.setLogCapacity(options.getInt("log", 10000));
+		server.setMaxRooms(options.getInt("max-rooms", 10000));
+		if (options.getString("journal", null) != null) {
+			server.setJournal(new File(options.getString("journal", null)),
+					Journal.Sync.valueOf(options.getString("fsync", "interval").toUpperCase()),
+					options.getInt("fsync-millis", 100));
+			if (options.getInt("checkpoint", 60) > 0) server.checkpointEvery(options.getInt("checkpoint", 60));
+		}
+		if (options.getInt("hibernate-after", 300) > 0) {
+			String dir = options.getString("hibernate-dir", null);
+			server.hibernateEvery(1, options.getInt("hibernate-after", 300), options.getInt("room-memory", 256) * (1L << 20),
+					dir != null ? new File(dir) : Files.createTempDirectory("sketch-rooms").toFile());
+		}
+		if (options.getInt("tick", 0) > 0) server.startTicks(options.getInt("tick", 0));
+		if (options.getInt("stats", 0) > 0) server.printStatsEvery(options.getInt("stats", 0));
+
+		if (channel != null) {
+			int loops = options.getInt("loops", Runtime.getRuntime().availableProcessors());
+			new SketchServerNio(server, channel, loops).getConnections();
+		}
+		else {
+			server.getConnections();
+		}
 	}
 }
@@ -1,73 +1,164 @@
 import java.io.*;
 import java.net.Socket;
-import java.util.List;
+import java.net.SocketTimeoutException;
 
 /**
  * Handles communication between the server and one client, for SketchServer
  *
  * @author Reed Levinson, Spring 2023
  */
-public class SketchServerCommunicator extends Thread {
+public class SketchServerCommunicator implements Runnable, ServerConnection {
 	private Socket sock;					// to talk with client
-	private BufferedReader in;				// from client
-	private PrintWriter out;				// to client
+	private InputStream in;					// from client
+	private OutputStream out;				// to client
 	private SketchServer server;			// handling communication for
+	private OutboundQueue outbound;			// messages waiting for the writer
+	private boolean binaryIn = false;		// whether the client has switched to sending binary
+	private String hello = null;			// the client's HELLO, if it said one
+	private Room room;						// the room the client is in (once it's joined)
+	private CommandParser parser = new CommandParser();		// for text commands
+	private Command parsed = new Command();					// reused for each command parsed
 
 	public SketchServerCommunicator(Socket sock, SketchServer server) {
 		this.sock = sock;
 		this.server = server;
+		outbound = server.newOutboundQueue();
 	}
 
 	/**
-	 * Sends a message to the client
+	 * Starts this connection's read loop on its own (platform or virtual) thread
+	 */
+	public void start() {
+		Threads.start("sketch-client-" + sock.getPort(), this);
+	}
+
+	/**
+	 * Queues a message for the client; the writer sends it when the client can take it.
+	 * If the client has fallen too far behind, it is disconnected.
 	 * @param msg
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	public void send(Message msg) {
+		if (!outbound.offer(msg) && !sock.isClosed()) {
+			System.out.println("disconnecting client that fell behind");
+			try {
+				sock.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public OutboundQueue getOutbound() {
+		return outbound;
+	}
+
+	/**
+	 * Writes queued messages to the client, flushing once whatever has piled up is written;
+	 * switches to binary after the server's WELCOME binary, and adds SYNCs after any WELCOME
+	 */
+	private void writeLoop() {
+		boolean binary = false, sync = false;
+		try {
+			Message msg;
+			while ((msg = outbound.take()) != null) {
+				do {
+					out.write(msg.getBytes(binary, sync));
+					if (msg.startsBinary()) binary = true;
+					if (msg.startsSync()) sync = true;
+				} while ((msg = outbound.poll()) != null);
+				out.flush();
+			}
+		}
+		catch (InterruptedException | IOException e) {
+			// client gone; the reader cleans up
+		}
 	}
-	
+
+	/**
+	 * Waits briefly for a new client's HELLO, so the handshake is settled before the snapshot goes out
+	 * (old clients say nothing at first, and just get text)
+	 * @return the first line if it was something other than a HELLO, to be handled after the snapshot
+	 */
+	private String handshake() throws IOException {
+		sock.setSoTimeout(SketchServer.HANDSHAKE_MILLIS);
+		try {
+			String line = WireProtocol.readLine(in);
+			if (line != null && line.startsWith(WireProtocol.HELLO)) {
+				hello = line;
+				send(server.welcome(line));
+				return null;
+			}
+			return line;
+		}
+		catch (SocketTimeoutException e) {
+			return null;
+		}
+		finally {
+			sock.setSoTimeout(0);
+		}
+	}
+
+	/**
+	 * Handles one line from a text-speaking client: a handshake line or a command
+	 */
+	private void handleLine(String line) {
+		if (line.startsWith(WireProtocol.HELLO)) {
+			send(server.welcome(line));
+		}
+		else if (line.equals(WireProtocol.BINARY)) {
+			binaryIn = true;
+		}
+		else {
+			System.out.println("command received: " +line);
+			if (parser.parse(line, parsed)) room.resolveCommand(this, parsed);
+		}
+	}
+
 	/**
 	 * Keeps listening for and handling (your code) messages from the client
 	 */
 	public void run() {
 		try {
 			System.out.println("someone connected");
-			
-			// Communication channel
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
-
-			// Tell the client the current state of the world
-			List<Integer> ids = server.getSketch().getIDsInOrder(); // gets  the IDs of all shapes in the sketch
-			StringBuilder sb = new StringBuilder();
 
-			// converts the given IDs into commands to generate shapes in client sketches using StringBuilder
-			ids.stream().forEach((id) -> {
-				sb.append("ADD ");
-				sb.append(id);
-				sb.append(" ");
-				sb.append(server.getSketch().shapeFromID(id).toString());
-				sb.append("\n");
-			});
+			// Communication channel
+			in = new BufferedInputStream(sock.getInputStream());
+			out = new BufferedOutputStream(sock.getOutputStream());
+			Threads.start("sketch-writer-" + sock.getPort(), this::writeLoop);
+			String first = handshake();
 
-			String s = sb.toString();
-			out.println(s);
+			// Tell the client the current state of its room's world, and start sending it updates
+			room = server.addCommunicator(this, hello);
+			if (first != null) handleLine(first);
 
 			// Keep getting and handling messages from the client
-			String line;
-			while ((line = in.readLine()) != null) {
-				System.out.println("command received: " +line);
-				server.resolveCommand(line);
+			while (true) {
+				if (binaryIn) {
+					Command c = WireProtocol.readFrame(in);
+					if (c == null) break;
+					room.resolveCommand(this, c);
+				}
+				else {
+					String line = WireProtocol.readLine(in);
+					if (line == null) break;
+					handleLine(line);
+				}
 			}
-
+		}
+		catch (IOException | RuntimeException e) {
+			if (!outbound.isClosed()) e.printStackTrace();
+		}
+		finally {
 			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
 			server.removeCommunicator(this);
-			out.close();
-			in.close();
-			sock.close();
-		}
-		catch (IOException e) {
-			e.printStackTrace();
+			outbound.close();
+			try {
+				sock.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 }
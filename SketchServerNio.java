@@ -0,0 +1,393 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking engine for SketchServer: rather than a thread per client, a small fixed set of
+ * event loops each multiplex many connections over a Selector.
+ * Speaks the same line-based ADD/MOVE/RECOLOR/DELETE protocol, so Editor clients can't tell the difference.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class SketchServerNio {
+	private static final int READ_BUFFER_SIZE = 8192;	// bytes read from a channel at a time
+
+	private ServerSocketChannel listen;					// for accepting connections
+	private SketchServer server;						// handles the commands and holds the sketch
+	private EventLoop[] loops;							// event loops that connections are spread over
+	private int nextLoop = 0;							// round-robin assignment of new connections
+
+	public SketchServerNio(SketchServer server, ServerSocketChannel listen, int numLoops) throws IOException {
+		this.server = server;
+		this.listen = listen;
+		loops = new EventLoop[Math.max(1, numLoops)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i);
+		}
+	}
+
+	/**
+	 * Starts the event loops and then hands each accepted connection to one of them
+	 */
+	public void getConnections() throws IOException {
+		for (EventLoop loop : loops) {
+			loop.setDaemon(true);
+			loop.start();
+		}
+		System.out.println("server ready for connections (nio, " + loops.length + " event loops)");
+		while (true) {
+			SocketChannel channel = listen.accept();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			loops[nextLoop].register(channel);
+			nextLoop = (nextLoop + 1) % loops.length;
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////
+
+	/**
+	 * One selector thread, reading from and writing to all of its connections
+	 */
+	private class EventLoop extends Thread {
+		private Selector selector;
+		private ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();	// waiting to be registered
+		private ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<>();		// have new output queued
+		private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();			// to run on the loop
+		private ArrayList<Connection> greeting = new ArrayList<>();		// new connections that haven't said HELLO yet
+
+		public EventLoop(int n) throws IOException {
+			super("sketch-nio-" + n);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Hands a new connection to this loop (called from the accepting thread)
+		 */
+		public void register(SocketChannel channel) {
+			accepted.add(channel);
+			selector.wakeup();
+		}
+
+		/**
+		 * Asks the loop to flush a connection's output (called from any thread)
+		 */
+		public void wantWrite(Connection conn) {
+			writable.add(conn);
+			if (Thread.currentThread() != this) selector.wakeup();
+		}
+
+		/**
+		 * Runs a task on the loop (called from any thread)
+		 */
+		public void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					// wait for I/O, or until the next new connection's handshake time is up
+					long now = System.currentTimeMillis();
+					long wait = 0;
+					for (Connection conn : greeting) {
+						long left = Math.max(1, conn.greetBy - now);
+						wait = wait == 0 ? left : Math.min(wait, left);
+					}
+					selector.select(wait);
+
+					// pick up newly accepted connections
+					SocketChannel channel;
+					while ((channel = accepted.poll()) != null) {
+						Connection conn = new Connection(channel, this);
+						try {
+							conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+						}
+						catch (ClosedChannelException e) {
+							continue;
+						}
+						System.out.println("someone connected");
+						conn.greetBy = System.currentTimeMillis() + SketchServer.HANDSHAKE_MILLIS;
+						greeting.add(conn);
+					}
+
+					// handle whatever the channels are ready for
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection conn = (Connection) key.attachment();
+						if (key.isValid() && key.isReadable()) conn.read();
+						if (key.isValid() && key.isWritable()) conn.flush();
+					}
+
+					// old clients never say HELLO; once their time is up, just start them off in text
+					long time = System.currentTimeMillis();
+					greeting.removeIf(conn -> {
+						if (!conn.greeted && !conn.closed && conn.greetBy <= time) conn.greet(null);
+						return conn.greeted || conn.closed;
+					});
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) task.run();
+
+					// flush connections that were sent something since the last pass
+					Connection conn;
+					while ((conn = writable.poll()) != null) {
+						conn.writeScheduled.set(false);
+						conn.flush();
+					}
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////
+
+	/**
+	 * One client connection, with non-blocking input framed into lines (or binary frames, once the client switches)
+	 * and a queue of pending output
+	 */
+	private class Connection implements ServerConnection {
+		private SocketChannel channel;
+		private EventLoop loop;											// the loop this connection lives on
+		private SelectionKey key;										// its registration with the loop's selector
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);	// bytes read but not yet framed
+		private byte[] pending = new byte[256];							// the current, incomplete line or frame(s)
+		private int pendingLength = 0;
+		private CommandParser parser = new CommandParser();				// for text commands
+		private Command parsed = new Command();							// reused for each command parsed
+		private OutboundQueue outbound = server.newOutboundQueue();		// messages waiting to be written
+		private ByteBuffer out = null;									// the message partly written so far
+		private AtomicBoolean writeScheduled = new AtomicBoolean(false);	// already in loop's writable queue
+		private long greetBy;											// when to give up waiting for HELLO
+		private boolean greeted = false;								// whether it has asked to join a room
+		private boolean joining = false;								// whether it's still waiting to be in it
+		private String firstLine = null;								// its first line, if not a HELLO, till then
+		private Room room;												// the room the client is in (once greeted)
+		private boolean binaryIn = false, binaryOut = false;			// whether each direction has switched to binary
+		private boolean sync = false;									// whether output gets SYNCs
+		private boolean closed = false;
+
+		public Connection(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+		}
+
+		/**
+		 * Queues a message for the client; the event loop writes it once the socket can take it.
+		 * If the client has fallen too far behind, it is disconnected.
+		 */
+		public void send(Message msg) {
+			boolean open = !outbound.isClosed();
+			if (!outbound.offer(msg) && open) {
+				System.out.println("disconnecting client that fell behind");
+			}
+			// the loop closes the channel if the queue was closed
+			if (writeScheduled.compareAndSet(false, true)) loop.wantWrite(this);
+		}
+
+		public OutboundQueue getOutbound() {
+			return outbound;
+		}
+
+		/**
+		 * Puts the client in the room it asked for, and tells it the current state of that room's world
+		 * (or what it missed, if resuming), and starts sending it updates.
+		 * That may mean loading the room from disk, so it happens off the loop; the client's input waits until then.
+		 * @param hello the client's HELLO, or null if it didn't say one
+		 */
+		private void greet(String hello) {
+			greeted = true;
+			joining = true;
+			key.interestOps(out == null ? 0 : SelectionKey.OP_WRITE);
+			server.addCommunicatorLater(this, hello).whenComplete((joined, e) -> loop.execute(() -> {
+				joining = false;
+				if (e != null) {
+					e.printStackTrace();
+					close();
+					return;
+				}
+				room = joined;
+				if (closed) {
+					server.removeCommunicator(this); // it went while joining
+					return;
+				}
+				key.interestOps(out == null ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				if (firstLine != null) handleCommand(firstLine);
+				firstLine = null;
+				handleInput(); // what came in after the HELLO
+			}));
+		}
+
+		/**
+		 * Reads what is available and hands every complete line or frame to the server
+		 */
+		public void read() {
+			int n;
+			try {
+				n = channel.read(in);
+			}
+			catch (IOException e) {
+				n = -1;
+			}
+			if (n < 0) {
+				close();
+				return;
+			}
+			handleInput();
+		}
+
+		/**
+		 * Hands every complete line or frame read so far to the server (holding what comes after a HELLO
+		 * until the client is in its room)
+		 */
+		private void handleInput() {
+			in.flip();
+			try {
+				while (in.hasRemaining() && !closed && !joining) {
+					if (binaryIn) readFrames();
+					else readLine();
+				}
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+				close();
+			}
+			in.compact();
+		}
+
+		/**
+		 * Frames a line directly out of the buffer, carrying a partial line over to the next read
+		 */
+		private void readLine() {
+			while (in.hasRemaining()) {
+				byte b = in.get();
+				if (b == '\n') {
+					int len = pendingLength;
+					if (len > 0 && pending[len - 1] == '\r') len--;
+					pendingLength = 0;
+					handleLine(len);
+					return; // the line may have switched the client to binary
+				}
+				append(b);
+			}
+		}
+
+		/**
+		 * Decodes every complete binary frame, carrying a partial frame over to the next read
+		 */
+		private void readFrames() {
+			while (in.hasRemaining()) append(in.get());
+			ByteBuffer buf = ByteBuffer.wrap(pending, 0, pendingLength);
+			while (true) {
+				int size = WireProtocol.frameSize(buf);
+				if (size < 0 || size > buf.remaining()) break;
+				room.resolveCommand(this, WireProtocol.decodeFrame(buf));
+			}
+			pendingLength = buf.remaining();
+			System.arraycopy(pending, buf.position(), pending, 0, pendingLength);
+		}
+
+		private void append(byte b) {
+			if (pendingLength == pending.length) pending = Arrays.copyOf(pending, pending.length * 2);
+			pending[pendingLength++] = b;
+		}
+
+		/**
+		 * Handles one line (the first len bytes of pending) from a text-speaking client: a command,
+		 * parsed right out of the bytes, or a handshake line
+		 */
+		private void handleLine(int len) {
+			if (greeted && parser.parse(pending, 0, len, parsed)) {
+				room.resolveCommand(this, parsed);
+				return;
+			}
+
+			String line = new String(pending, 0, len, StandardCharsets.UTF_8);
+			if (line.startsWith(WireProtocol.HELLO)) {
+				send(server.welcome(line));
+				if (!greeted) greet(line);
+				return;
+			}
+			if (!greeted) {
+				greet(null);
+				firstLine = line;
+				return;
+			}
+			handleCommand(line);
+		}
+
+		/**
+		 * Handles a text line that isn't a handshake, once the client is in its room
+		 */
+		private void handleCommand(String line) {
+			if (line.equals(WireProtocol.BINARY)) binaryIn = true;
+			else room.resolveCommand(this, line);
+		}
+
+		/**
+		 * Writes as much queued output as the socket will take, then waits for OP_WRITE if some is left
+		 */
+		public void flush() {
+			if (closed) return;
+			if (outbound.isClosed()) {
+				close();
+				return;
+			}
+			try {
+				while (true) {
+					if (out == null) {
+						Message msg = outbound.poll();
+						if (msg == null) break;
+						out = ByteBuffer.wrap(msg.getBytes(binaryOut, sync));
+						if (msg.startsBinary()) binaryOut = true;
+						if (msg.startsSync()) sync = true;
+					}
+					channel.write(out);
+					if (out.hasRemaining()) {
+						key.interestOps(joining ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					out = null;
+				}
+				key.interestOps(joining ? 0 : SelectionKey.OP_READ);
+			}
+			catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Cleans up -- note that also removes self from server's list so it doesn't broadcast here
+		 */
+		private void close() {
+			if (closed) return;
+			closed = true;
+			server.removeCommunicator(this);
+			outbound.close();
+			key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			out = null;
+		}
+	}
+}
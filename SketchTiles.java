@@ -0,0 +1,212 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * One cached layer of a sketch, as a grid of square tiles: the shapes with IDs in a range, each drawn into the tiles it
+ * reaches. A change marks where it happened as stale in the tiles it touches, and only those parts are drawn again,
+ * at the next update. The stale tiles are drawn in parallel on a fork/join pool, each given just the shapes that reach
+ * its stale part, so drawing a big sketch from scratch goes about as many times faster as there are cores.
+ * The tiles are in canvas pixels; the shapes, and the boxes marked stale, are in sketch coordinates, which the view
+ * (an origin and a scale, for panning and zooming) maps onto the canvas.
+ * Updated and drawn on the event dispatch thread; told of changes from any thread.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class SketchTiles {
+	public static final int TILE = 128;	// tile size, in pixels
+
+	private Sketch sketch;
+	private ForkJoinPool pool;			// draws the stale tiles (null: one after another, on the caller's thread)
+	private int width = -1, height = -1;	// canvas size
+	private int cols, rows;				// tiles across and down
+	private BufferedImage[] images = new BufferedImage[0];	// tile (row by row) -> its part of the layer (null: empty)
+	private int[][] stale = new int[0][];	// tile -> the part of it to draw again: {left, top, right, bottom}, or null
+	private boolean anyStale = false;
+	private double originX = 0, originY = 0;	// the point of the sketch at the canvas's top left
+	private double scale = 1;				// canvas pixels per unit of the sketch
+
+	public SketchTiles(Sketch sketch, ForkJoinPool pool) {
+		this.sketch = sketch;
+		this.pool = pool;
+	}
+
+	/**
+	 * Changes the view: the point of the sketch at the canvas's top left, and the canvas pixels per unit of the sketch
+	 * (which redraws the whole layer)
+	 */
+	public synchronized void setView(double originX, double originY, double scale) {
+		if (originX == this.originX && originY == this.originY && scale == this.scale) return;
+		this.originX = originX;
+		this.originY = originY;
+		this.scale = scale;
+		invalidateAll();
+	}
+
+	/**
+	 * Marks a box of the sketch (as in Shape.getBounds) as stale, in the tiles it reaches
+	 */
+	public synchronized void invalidate(int[] box) {
+		int[] pixels = toCanvas(box);
+		invalidatePixels(pixels[0], pixels[1], pixels[2], pixels[3]);
+	}
+
+	/**
+	 * Marks a box of the canvas as stale, in the tiles it reaches
+	 */
+	private void invalidatePixels(int left, int top, int right, int bottom) {
+		left = Math.max(0, left); top = Math.max(0, top);
+		right = Math.min(width - 1, right); bottom = Math.min(height - 1, bottom);
+		if (left > right || top > bottom) return;
+		for (int row = top / TILE; row <= bottom / TILE; row++) {
+			for (int col = left / TILE; col <= right / TILE; col++) {
+				int[] part = {
+						Math.max(left, col * TILE), Math.max(top, row * TILE),
+						Math.min(right, col * TILE + TILE - 1), Math.min(bottom, row * TILE + TILE - 1) };
+				int t = row * cols + col;
+				stale[t] = stale[t] == null ? part : new int[] {
+						Math.min(stale[t][0], part[0]), Math.min(stale[t][1], part[1]),
+						Math.max(stale[t][2], part[2]), Math.max(stale[t][3], part[3]) };
+				anyStale = true;
+			}
+		}
+	}
+
+	/**
+	 * Marks the whole layer as stale
+	 */
+	public synchronized void invalidateAll() {
+		invalidatePixels(0, 0, width - 1, height - 1);
+	}
+
+	/**
+	 * Empties the layer, without drawing anything again (what should be in it is then to be marked stale)
+	 */
+	public synchronized void clear() {
+		images = new BufferedImage[cols * rows];
+		stale = new int[cols * rows][];
+		anyStale = false;
+	}
+
+	/**
+	 * Brings the stale parts of the layer up to date for a canvas of the given size (all of it, if that has changed),
+	 * with the shapes whose IDs are strictly between from and to
+	 */
+	public void update(int width, int height, int from, int to) {
+		int[][] redo;
+		double originX, originY, scale;
+		synchronized (this) {
+			if (width != this.width || height != this.height) {
+				this.width = width;
+				this.height = height;
+				cols = (width + TILE - 1) / TILE;
+				rows = (height + TILE - 1) / TILE;
+				clear();
+				invalidateAll();
+			}
+			if (!anyStale) return;
+			redo = stale;
+			stale = new int[cols * rows][];
+			anyStale = false;
+			originX = this.originX; originY = this.originY; scale = this.scale;
+		}
+		// what each tile's stale part covers of the sketch, for testing shapes against
+		int[][] redoSketch = new int[redo.length][];
+		for (int t = 0; t < redo.length; t++) {
+			if (redo[t] != null) redoSketch[t] = toSketch(redo[t], originX, originY, scale);
+		}
+
+		// one pass over the sketch hands each stale tile the shapes reaching its stale part, back to front
+		ArrayList<ArrayList<Shape>> drawn = new ArrayList<>(redo.length);
+		int n = 0;
+		for (int t = 0; t < redo.length; t++) {
+			drawn.add(redo[t] == null ? null : new ArrayList<>());
+			if (redo[t] != null) n++;
+		}
+		sketch.forEach((id, shape) -> {
+			if (id <= from || id >= to) return;
+			int[] b = toCanvas(shape.getBounds(), originX, originY, scale);
+			int left = Math.max(0, Math.floorDiv(b[0], TILE)), top = Math.max(0, Math.floorDiv(b[1], TILE));
+			int right = Math.min(cols - 1, Math.floorDiv(b[2], TILE)), bottom = Math.min(rows - 1, Math.floorDiv(b[3], TILE));
+			for (int row = top; row <= bottom; row++) {
+				for (int col = left; col <= right; col++) {
+					int[] box = redoSketch[row * cols + col];
+					if (box != null && shape.intersects(box[0], box[1], box[2], box[3])) drawn.get(row * cols + col).add(shape);
+				}
+			}
+		});
+
+		if (pool == null || n == 1) {
+			for (int t = 0; t < redo.length; t++) {
+				if (redo[t] != null) render(t, redo[t], drawn.get(t), originX, originY, scale);
+			}
+			return;
+		}
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[n];
+		n = 0;
+		for (int t = 0; t < redo.length; t++) {
+			int tile = t;
+			if (redo[t] != null) tasks[n++] = pool.submit(() -> render(tile, redo[tile], drawn.get(tile), originX, originY, scale));
+		}
+		for (ForkJoinTask<?> task : tasks) task.join();
+	}
+
+	/**
+	 * Draws the layer's tiles that reach into g's clip
+	 */
+	public void draw(Graphics g) {
+		java.awt.Rectangle clip = g.getClipBounds();
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				BufferedImage image = images[row * cols + col];
+				if (image == null) continue;
+				if (clip != null && !clip.intersects(col * TILE, row * TILE, TILE, TILE)) continue;
+				g.drawImage(image, col * TILE, row * TILE, null);
+			}
+		}
+	}
+
+	/**
+	 * @return the box of the canvas a box of the sketch covers in the current view (with a pixel around, for rounding)
+	 */
+	public synchronized int[] toCanvas(int[] box) {
+		return toCanvas(box, originX, originY, scale);
+	}
+
+	private static int[] toCanvas(int[] box, double originX, double originY, double scale) {
+		return new int[] {
+				(int) Math.floor((box[0] - originX) * scale) - 1, (int) Math.floor((box[1] - originY) * scale) - 1,
+				(int) Math.ceil((box[2] - originX) * scale) + 1, (int) Math.ceil((box[3] - originY) * scale) + 1 };
+	}
+
+	private static int[] toSketch(int[] box, double originX, double originY, double scale) {
+		return new int[] {
+				(int) Math.floor(box[0] / scale + originX) - 1, (int) Math.floor(box[1] / scale + originY) - 1,
+				(int) Math.ceil(box[2] / scale + originX) + 1, (int) Math.ceil(box[3] / scale + originY) + 1 };
+	}
+
+	/**
+	 * Draws again the stale part of a tile (a box of the canvas): clears it, then draws the given shapes into it
+	 */
+	private void render(int t, int[] box, ArrayList<Shape> shapes, double originX, double originY, double scale) {
+		if (images[t] == null) {
+			if (shapes.isEmpty()) return; // still empty
+			images[t] = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+		}
+		int x = (t % cols) * TILE, y = (t / cols) * TILE;
+		Graphics2D g = images[t].createGraphics();
+		g.translate(-x, -y);
+		g.setComposite(AlphaComposite.Clear);
+		g.fillRect(box[0], box[1], box[2] - box[0] + 1, box[3] - box[1] + 1);
+		g.setComposite(AlphaComposite.SrcOver);
+		g.setClip(box[0], box[1], box[2] - box[0] + 1, box[3] - box[1] + 1);
+		g.scale(scale, scale);
+		g.translate(-originX, -originY);
+		for (Shape shape : shapes) shape.draw(g);
+		g.dispose();
+	}
+}
@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The state of the world on its way to a newly connected client, a chunk of ADDs at a time,
+ * the next chunk only once the client has taken most of the last one.
+ * It is the sketch as of the moment the client joined: before the sequencer changes a shape the stream hasn't reached,
+ * it saves the shape as it was (beforeChange); operations from after the join wait here and go out after the last chunk.
+ * For a client that only looks at part of the sketch, it is just the shapes that were in view when it joined.
+ * Only used on the sequencer thread.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class SnapshotStream {
+	public static final int CHUNK_SHAPES = 256;		// shapes per chunk
+	public static final int WINDOW = 4;				// most messages waiting for the client before the next chunk
+
+	private ServerConnection conn;						// the client
+	private long seq;									// sequence number of the last operation in the snapshot
+	private int[] ids;									// shapes in the snapshot, back to front (ascending ids)
+	private int next = 0;								// index in ids of the next shape to send
+	private boolean started = false;					// whether any chunk has gone out (an empty sketch still gets one)
+	private HashMap<Integer, Message> saved = new HashMap<>();	// shape id -> its ADD from before it changed
+	private ArrayList<Message> live = new ArrayList<>();		// operations since the join
+
+	public SnapshotStream(ServerConnection conn, Sketch sketch, long seq) {
+		this(conn, seq, sketch.getIDs());
+	}
+
+	/**
+	 * A snapshot of just the shapes with the given IDs (in ascending order)
+	 */
+	public SnapshotStream(ServerConnection conn, long seq, int[] ids) {
+		this.conn = conn;
+		this.seq = seq;
+		this.ids = ids;
+	}
+
+	public ServerConnection getConnection() {
+		return conn;
+	}
+
+	/**
+	 * @return whether the whole snapshot has gone out
+	 */
+	public boolean isDone() {
+		return started && next >= ids.length;
+	}
+
+	/**
+	 * @return whether the client has room for another chunk
+	 */
+	public boolean isReady() {
+		return conn.getOutbound().getDepth() < WINDOW;
+	}
+
+	/**
+	 * Saves the shape as it is now, if it is still to be sent, since it's about to change
+	 */
+	public void beforeChange(int id, Sketch sketch) {
+		if (saved.containsKey(id) || Arrays.binarySearch(ids, next, ids.length, id) < 0) return;
+		Shape shape = sketch.shapeFromID(id);
+		if (shape != null) saved.put(id, new Message(Command.add(id, shape)));
+	}
+
+	/**
+	 * Holds an operation from after the join until the snapshot is out
+	 */
+	public void addLive(Message m) {
+		live.add(m);
+	}
+
+	/**
+	 * Sends the next chunk of ADDs; the last one brings the client up to the snapshot's seq
+	 */
+	public void sendChunk(Sketch sketch) {
+		int end = Math.min(ids.length, next + CHUNK_SHAPES);
+		List<Message> adds = new ArrayList<>(end - next);
+		for (; next < end; next++) {
+			int id = ids[next];
+			Message add = saved.remove(id);
+			if (add == null) {
+				Shape shape = sketch.shapeFromID(id);
+				if (shape == null) continue;
+				add = new Message(Command.add(id, shape));
+			}
+			adds.add(add);
+		}
+		if (next == ids.length) conn.send(Message.batch(adds, seq));
+		else if (!adds.isEmpty()) conn.send(Message.batch(adds));
+		started = true;
+	}
+
+	/**
+	 * Sends the operations held since the join, after which the client is caught up
+	 */
+	public void finish() {
+		if (!live.isEmpty()) conn.send(live.size() == 1 ? live.get(0) : Message.batch(live));
+		live.clear();
+	}
+}
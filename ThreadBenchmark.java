@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares platform threads with virtual threads for SketchServer's per-connection communicators:
+ * how fast connections are accepted and how much memory the idle connections hold.
+ * Usage: java ThreadBenchmark [--clients=n]
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class ThreadBenchmark {
+	public static void main(String[] args) throws Exception {
+		int clients = Options.parse(args).getInt("clients", 2000);
+		PrintStream console = System.out;
+
+		console.println("mode      clients  accept/s   heap(MB)  rss(MB)  threads");
+		run(false, clients, console);
+		if (Threads.virtualSupported()) run(true, clients, console);
+		else console.println("virtual   (not available on this JDK)");
+	}
+
+	/**
+	 * Starts a server in the given mode, connects the clients to it and reports on the result
+	 */
+	private static void run(boolean virtual, int clients, PrintStream console) throws Exception {
+		Threads.setVirtual(virtual);
+		ServerSocket listen = new ServerSocket(0, clients);
+		SketchServer server = new SketchServer(listen);
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));	// quiet the per-connection logging
+
+		Thread acceptor = new Thread(() -> {
+			try {
+				server.getConnections();
+			}
+			catch (IOException e) {
+				// listen socket closed: done
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		long heapBefore = usedHeap();
+		long rssBefore = rss();
+		List<Socket> socks = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			Socket sock = new Socket("localhost", listen.getLocalPort());
+			sock.getOutputStream().write((WireProtocol.hello(false) + "\n").getBytes());	// skip the handshake wait
+			socks.add(sock);
+		}
+		while (server.getNumConnections() < clients) Thread.sleep(1);
+		long elapsed = System.nanoTime() - start;
+		Thread.sleep(500);	// let every communicator reach its blocking read
+
+		long heap = usedHeap() - heapBefore;
+		long rss = rss() - rssBefore;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		System.setOut(console);
+		console.printf("%-9s %7d  %8.0f  %8.1f  %7.1f  %7d%n", virtual ? "virtual" : "platform", clients,
+				clients / (elapsed / 1e9), heap / 1e6, rss / 1e6, threads);
+
+		for (Socket sock : socks) sock.close();
+		listen.close();
+		while (server.getNumConnections() > 0) Thread.sleep(1);
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Resident set size of the process in bytes (includes thread stacks), or 0 where /proc isn't available
+	 */
+	private static long rss() {
+		try {
+			for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		}
+		catch (IOException | NumberFormatException e) {
+			// not on Linux
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,95 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts the per-connection threads (readers and writers) for the server, the echo server and the editor,
+ * either as ordinary platform threads or, with --virtual, as virtual threads.
+ * Virtual threads are looked up reflectively, so this still builds and runs (on platform threads) on JDKs without them.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class Threads {
+	private static boolean virtual = false;		// whether new threads are virtual
+	private static Method ofVirtual;			// Thread.ofVirtual(), if this JDK has it
+	private static Method builderName;			// Thread.Builder.name(String)
+	private static Method builderStart;			// Thread.Builder.start(Runnable)
+
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class);
+			builderStart = builder.getMethod("start", Runnable.class);
+		}
+		catch (ReflectiveOperationException e) {
+			ofVirtual = null;
+		}
+	}
+
+	/**
+	 * Chooses whether threads started from now on are virtual; falls back to platform threads (with a warning)
+	 * if this JDK can't make virtual ones
+	 */
+	public static void setVirtual(boolean v) {
+		if (v && !virtualSupported()) {
+			System.err.println("virtual threads not available on this JDK; using platform threads");
+			v = false;
+		}
+		virtual = v;
+	}
+
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Whether this JDK can start virtual threads (they are a preview feature before JDK 21)
+	 */
+	public static boolean virtualSupported() {
+		if (ofVirtual == null) return false;
+		try {
+			ofVirtual.invoke(null);
+			return true;
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Starts a thread running the task, virtual or platform depending on the current setting;
+	 * platform threads are daemons, like virtual threads always are
+	 * @param name thread name (shows up in stack dumps)
+	 * @param task what the thread runs
+	 * @return the started thread
+	 */
+	public static Thread start(String name, Runnable task) {
+		if (virtual) {
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				return (Thread) builderStart.invoke(builder, task);
+			}
+			catch (IllegalAccessException | InvocationTargetException e) {
+				throw new IllegalStateException("couldn't start virtual thread", e);
+			}
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * @return a factory for the server's pooled (always platform, daemon) threads, named prefix-0, prefix-1, ...
+	 */
+	public static ThreadFactory daemons(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return task -> {
+			Thread thread = new Thread(task, prefix + "-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
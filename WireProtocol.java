@@ -0,0 +1,468 @@
+import java.awt.Color;
+import java.awt.Point;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compact binary form of the editing protocol, and the handshake that switches a connection over to it.
+ *
+ * Handshake (all text lines): a new client opens with "HELLO 2 binary" (or "HELLO 2 text");
+ * the server answers "WELCOME 2 binary epoch" or "WELCOME 2 text epoch", and if binary, everything it sends after that
+ * line is binary. Once the client has seen WELCOME binary it sends one more line, "BINARY", and everything it sends
+ * after that is binary. Old clients never say HELLO, so they just keep getting text.
+ *
+ * A HELLO may name the room (document) to join, as in "HELLO 2 binary ROOM name"; otherwise it's the default room,
+ * which is also where old clients go. A room name is up to MAX_ROOM letters, digits, '_' and '-', and not one of the
+ * handshake's words (it names the room's directory on the server, so it can't be anything else).
+ *
+ * Clients that said HELLO also get a SYNC seq after each message, giving the sequence number of the last operation in it.
+ * A client reconnecting to a server with the same epoch opens with "HELLO 2 binary [ROOM name] RESUME epoch seq" and gets
+ * just the operations after seq; if the server can't do that, it sends RESET and then the whole snapshot.
+ * A client that only wants the part of the sketch it can see says so with "VIEW left top right bottom" in its HELLO
+ * (before any RESUME), and gets just that part of the snapshot (see Command's VIEW and EVICT); it doesn't resume.
+ *
+ * Each binary frame is a varint length followed by that many bytes:
+ * opcode byte, varint shape id, then
+ * ADD: shape kind byte, 4-byte RGB, then x1 y1 x2 y2 (ellipse/rectangle/segment)
+ * or a point count and the points as deltas from the previous one (polyline), all zigzag varints;
+ * MOVE: dx dy as zigzag varints; RECOLOR: 4-byte RGB; DELETE: nothing more;
+ * SYNC: the sequence number as a varint (the shape id is 0); RESET: nothing more;
+ * BEGIN: a polyline, as in ADD (the shape id is 0); APPEND: a point count and the points, as in a polyline;
+ * END: nothing more (the shape id is 0);
+ * VIEW: left top right bottom as zigzag varints (the shape id is 0); EVICT: nothing more.
+ *
+ * @author Reed Levinson, Spring 2023
+ */
+public class WireProtocol {
+	public static final int VERSION = 2;
+	public static final String HELLO = "HELLO", WELCOME = "WELCOME", BINARY = "BINARY", RESUME = "RESUME", ROOM = "ROOM",
+			VIEW = "VIEW";
+	public static final String DEFAULT_ROOM = "default";
+	public static final int MAX_ROOM = 64;				// longest room name
+
+	private static final int MAX_FRAME = 64 << 20;		// bigger than any sane shape; guards against garbage
+
+	// opcodes
+	private static final byte OP_ADD = 1, OP_MOVE = 2, OP_RECOLOR = 3, OP_DELETE = 4, OP_SYNC = 5, OP_RESET = 6,
+			OP_BEGIN = 7, OP_APPEND = 8, OP_END = 9, OP_VIEW = 10, OP_EVICT = 11;
+	// shape kinds
+	private static final byte ELLIPSE = 1, RECTANGLE = 2, SEGMENT = 3, POLYLINE = 4;
+
+	/**
+	 * @return the client's opening line
+	 */
+	public static String hello(boolean binary) {
+		return HELLO + " " + VERSION + " " + (binary ? "binary" : "text");
+	}
+
+	/**
+	 * @return the opening line of a client joining a room (null for the default room)
+	 */
+	public static String hello(boolean binary, String room) {
+		return room == null ? hello(binary) : hello(binary) + " " + ROOM + " " + room;
+	}
+
+	/**
+	 * @return the opening line of a client joining a room (null for the default room) that only wants to get
+	 * the part of the sketch in the box {left, top, right, bottom} (null for all of it)
+	 */
+	public static String hello(boolean binary, String room, int[] view) {
+		if (view == null) return hello(binary, room);
+		return hello(binary, room) + " " + VIEW + " " + view[0] + " " + view[1] + " " + view[2] + " " + view[3];
+	}
+
+	/**
+	 * @return the opening line of a client picking up where it left off: the server's epoch and the last seq it applied
+	 */
+	public static String hello(boolean binary, String room, long epoch, long seq) {
+		return hello(binary, room) + " " + RESUME + " " + epoch + " " + seq;
+	}
+
+	/**
+	 * @return the server's answer to a HELLO
+	 */
+	public static String welcome(boolean binary, long epoch) {
+		return WELCOME + " " + VERSION + " " + (binary ? "binary" : "text") + " " + epoch;
+	}
+
+	/**
+	 * @return whether a HELLO or WELCOME line asks for binary
+	 */
+	public static boolean isBinary(String line) {
+		String[] parts = line.split(" ");
+		return parts.length > 2 && parts[2].equals("binary") && Integer.parseInt(parts[1]) >= VERSION;
+	}
+
+	/**
+	 * @return the room a HELLO asks for (the default room if it doesn't say)
+	 * @throws IllegalArgumentException if it isn't a room name (see isRoomName)
+	 */
+	public static String room(String hello) {
+		String[] parts = hello.split(" ");
+		int i = indexOf(parts, ROOM);
+		if (i < 0 || i + 1 >= parts.length) return DEFAULT_ROOM;
+		if (!isRoomName(parts[i + 1])) throw new IllegalArgumentException("bad room name " + parts[i + 1]);
+		return parts[i + 1];
+	}
+
+	/**
+	 * @return whether a room may have this name: up to MAX_ROOM letters, digits, '_' and '-'
+	 * (so never a path like "." or ".."), and not a word of the handshake
+	 */
+	public static boolean isRoomName(String name) {
+		if (name.isEmpty() || name.length() > MAX_ROOM) return false;
+		for (String word : new String[] { HELLO, WELCOME, BINARY, RESUME, ROOM, VIEW }) {
+			if (name.equals(word)) return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '-')) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the epoch in a WELCOME or a resuming HELLO, or -1 if there isn't one
+	 */
+	public static long epoch(String line) {
+		String[] parts = line.split(" ");
+		if (parts[0].equals(WELCOME)) return parts.length > 3 ? Long.parseLong(parts[3]) : -1;
+		int i = indexOf(parts, RESUME);
+		return i >= 0 && i + 1 < parts.length ? Long.parseLong(parts[i + 1]) : -1;
+	}
+
+	/**
+	 * @return whether a HELLO is from a client picking up where it left off
+	 */
+	public static boolean isResume(String hello) {
+		String[] parts = hello.split(" ");
+		int i = indexOf(parts, RESUME);
+		return i >= 0 && i + 2 < parts.length;
+	}
+
+	/**
+	 * @return the last seq a resuming client applied
+	 */
+	public static long resumeSeq(String hello) {
+		String[] parts = hello.split(" ");
+		return Long.parseLong(parts[indexOf(parts, RESUME) + 2]);
+	}
+
+	/**
+	 * @return the box a HELLO says the client is looking at, or null if it wants the whole sketch
+	 */
+	public static int[] view(String hello) {
+		String[] parts = hello.split(" ");
+		int i = indexOf(parts, VIEW);
+		if (i < 0 || i + 4 >= parts.length) return null;
+		int[] box = new int[4];
+		for (int j = 0; j < 4; j++) box[j] = Integer.parseInt(parts[i + 1 + j]);
+		return box;
+	}
+
+	/**
+	 * @return where word is among the parts of a handshake line (after the version), or -1
+	 */
+	private static int indexOf(String[] parts, String word) {
+		for (int i = 3; i < parts.length; i++) {
+			if (parts[i].equals(word)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Encodes a command as one length-prefixed binary frame
+	 */
+	public static byte[] encode(Command c) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(16);
+		body.write(switch (c.op) {
+			case ADD -> OP_ADD;
+			case MOVE -> OP_MOVE;
+			case RECOLOR -> OP_RECOLOR;
+			case DELETE -> OP_DELETE;
+			case SYNC -> OP_SYNC;
+			case RESET -> OP_RESET;
+			case BEGIN -> OP_BEGIN;
+			case APPEND -> OP_APPEND;
+			case END -> OP_END;
+			case VIEW -> OP_VIEW;
+			case EVICT -> OP_EVICT;
+		});
+		writeVarint(body, c.id);
+		switch (c.op) {
+			case ADD, BEGIN -> writeShape(body, c.shape);
+			case MOVE -> {
+				writeVarint(body, zigzag(c.dx));
+				writeVarint(body, zigzag(c.dy));
+			}
+			case RECOLOR -> writeInt(body, c.color);
+			case SYNC -> writeVarlong(body, c.seq);
+			case APPEND -> {
+				writeVarint(body, c.points.length / 2);
+				int x = 0, y = 0;
+				for (int i = 0; i < c.points.length; i += 2) {
+					writeVarint(body, zigzag(c.points[i] - x));
+					writeVarint(body, zigzag(c.points[i + 1] - y));
+					x = c.points[i]; y = c.points[i + 1];
+				}
+			}
+			case VIEW -> {
+				for (int v : c.box) writeVarint(body, zigzag(v));
+			}
+			case DELETE, RESET, END, EVICT -> { }
+		}
+
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 5);
+		writeVarint(frame, body.size());
+		frame.writeBytes(body.toByteArray());
+		return frame.toByteArray();
+	}
+
+	private static void writeShape(ByteArrayOutputStream out, Shape shape) {
+		if (shape instanceof Polyline polyline) {
+			out.write(POLYLINE);
+			writeInt(out, polyline.getColor().getRGB());
+			writeVarint(out, polyline.size());
+			int x = 0, y = 0;
+			for (int i = 0; i < polyline.size(); i++) {
+				writeVarint(out, zigzag(polyline.getX(i) - x));
+				writeVarint(out, zigzag(polyline.getY(i) - y));
+				x = polyline.getX(i); y = polyline.getY(i);
+			}
+			return;
+		}
+
+		int x1, y1, x2, y2;
+		if (shape instanceof Ellipse e) {
+			out.write(ELLIPSE);
+			x1 = e.getX1(); y1 = e.getY1(); x2 = e.getX2(); y2 = e.getY2();
+		}
+		else if (shape instanceof Rectangle r) {
+			out.write(RECTANGLE);
+			x1 = r.getX1(); y1 = r.getY1(); x2 = r.getX2(); y2 = r.getY2();
+		}
+		else {
+			Segment s = (Segment) shape;
+			out.write(SEGMENT);
+			x1 = s.getX1(); y1 = s.getY1(); x2 = s.getX2(); y2 = s.getY2();
+		}
+		writeInt(out, shape.getColor().getRGB());
+		writeVarint(out, zigzag(x1));
+		writeVarint(out, zigzag(y1));
+		writeVarint(out, zigzag(x2));
+		writeVarint(out, zigzag(y2));
+	}
+
+	/**
+	 * Reads the next binary frame from a stream
+	 * @return the decoded command, or null if the stream ended cleanly between frames
+	 */
+	public static Command readFrame(InputStream in) throws IOException {
+		int length = 0, shift = 0, b;
+		do {
+			b = in.read();
+			if (b < 0) {
+				if (shift == 0) return null;
+				throw new EOFException("stream ended inside a frame");
+			}
+			length |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		if (length > MAX_FRAME) throw new IOException("frame too large: " + length);
+
+		byte[] body = in.readNBytes(length);
+		if (body.length < length) throw new EOFException("stream ended inside a frame");
+		return decode(ByteBuffer.wrap(body));
+	}
+
+	/**
+	 * Reads the length prefix of the frame at the buffer's position, without consuming anything
+	 * @return the total frame size including the prefix, or -1 if the prefix itself isn't all there yet
+	 */
+	public static int frameSize(ByteBuffer buf) {
+		int length = 0, shift = 0, i = buf.position();
+		while (i < buf.limit()) {
+			byte b = buf.get(i++);
+			length |= (b & 0x7f) << shift;
+			shift += 7;
+			if ((b & 0x80) == 0) {
+				if (length > MAX_FRAME) throw new IllegalArgumentException("frame too large: " + length);
+				return i - buf.position() + length;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes the complete frame at the buffer's position (see frameSize), moving the position past it
+	 */
+	public static Command decodeFrame(ByteBuffer buf) {
+		int length = readVarint(buf);
+		int end = buf.position() + length;
+		ByteBuffer body = buf.slice();
+		body.limit(length);
+		buf.position(end);
+		return decode(body);
+	}
+
+	/**
+	 * Decodes one frame body (everything after the length prefix)
+	 */
+	public static Command decode(ByteBuffer body) {
+		byte op = body.get();
+		int id = readVarint(body);
+		switch (op) {
+			case OP_ADD -> {
+				return Command.add(id, readShape(body));
+			}
+			case OP_MOVE -> {
+				int dx = unzigzag(readVarint(body));
+				return Command.move(id, dx, unzigzag(readVarint(body)));
+			}
+			case OP_RECOLOR -> {
+				return Command.recolor(id, body.getInt());
+			}
+			case OP_DELETE -> {
+				return Command.delete(id);
+			}
+			case OP_SYNC -> {
+				return Command.sync(readVarlong(body));
+			}
+			case OP_RESET -> {
+				return Command.reset();
+			}
+			case OP_BEGIN -> {
+				Shape shape = readShape(body);
+				if (!(shape instanceof Polyline stroke)) throw new IllegalArgumentException("BEGIN of a " + shape);
+				return Command.begin(stroke);
+			}
+			case OP_APPEND -> {
+				int n = readVarint(body);
+				if (n <= 0 || n > body.remaining()) throw new IllegalArgumentException("bad APPEND point count " + n);
+				int[] points = new int[2 * n];
+				int x = 0, y = 0;
+				for (int i = 0; i < points.length; i += 2) {
+					points[i] = x += unzigzag(readVarint(body));
+					points[i + 1] = y += unzigzag(readVarint(body));
+				}
+				return Command.append(id, points);
+			}
+			case OP_END -> {
+				return Command.end();
+			}
+			case OP_VIEW -> {
+				int[] box = new int[4];
+				for (int i = 0; i < 4; i++) box[i] = unzigzag(readVarint(body));
+				return Command.view(box);
+			}
+			case OP_EVICT -> {
+				return Command.evict(id);
+			}
+		}
+		throw new IllegalArgumentException("unknown opcode " + op);
+	}
+
+	private static Shape readShape(ByteBuffer in) {
+		byte kind = in.get();
+		Color color = new Color(in.getInt());
+		if (kind == POLYLINE) {
+			int n = readVarint(in);
+			int x = unzigzag(readVarint(in)), y = unzigzag(readVarint(in));
+			Polyline polyline = new Polyline(new Point(x, y), color);
+			for (int i = 1; i < n; i++) {
+				x += unzigzag(readVarint(in));
+				y += unzigzag(readVarint(in));
+				polyline.addPoint(x, y);
+			}
+			return polyline;
+		}
+
+		int x1 = unzigzag(readVarint(in)), y1 = unzigzag(readVarint(in));
+		int x2 = unzigzag(readVarint(in)), y2 = unzigzag(readVarint(in));
+		return switch (kind) {
+			case ELLIPSE -> new Ellipse(x1, y1, x2, y2, color);
+			case RECTANGLE -> new Rectangle(x1, y1, x2, y2, color);
+			case SEGMENT -> new Segment(x1, y1, x2, y2, color);
+			default -> throw new IllegalArgumentException("unknown shape kind " + kind);
+		};
+	}
+
+	/**
+	 * Reads one newline-terminated text line straight off the byte stream
+	 * (a BufferedReader would read ahead into binary frames that follow the handshake)
+	 * @return the line without its line terminator, or null at the end of the stream
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+			line.write(b);
+		}
+		String s = line.toString(StandardCharsets.UTF_8);
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	// Varint helpers
+
+	private static void writeVarint(ByteArrayOutputStream out, int v) {
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static void writeVarlong(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7fL) != 0) {
+			out.write((int) (v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static long readVarlong(ByteBuffer in) {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			v |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		int v = 0, shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			v |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int v) {
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+
+	/**
+	 * Maps signed ints to unsigned so small negative numbers stay short: 0, -1, 1, -2, ... -> 0, 1, 2, 3, ...
+	 */
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+}